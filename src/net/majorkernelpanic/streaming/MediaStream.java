@@ -279,6 +279,15 @@ public abstract class MediaStream implements Stream {
 
 	}
 
+	/** 
+	 * Stops the stream and closes its sockets.
+	 * The stream can not be used anymore afterwards.
+	 */
+	public synchronized void release() {
+		stop();
+		if (mPacketizer != null) mPacketizer.getRtpSocket().close();
+	}
+
 	/** Stops the stream. */
 	@SuppressLint("NewApi") 
 	public synchronized  void stop() {
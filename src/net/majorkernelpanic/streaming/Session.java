@@ -30,6 +30,7 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
+import net.majorkernelpanic.streaming.video.BitrateController;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.hardware.Camera.CameraInfo;
@@ -138,6 +139,14 @@ public class Session {
 		 */
 		public void onBitrateUpdate(long bitrate);
 
+		/** 
+		 * Called when the {@link BitrateController} of the {@link VideoStream} 
+		 * changes the bitrate of the encoder.
+		 * @param bitrate The new bitrate in bit/s
+		 * @param reason See {@link BitrateController#REASON_PROBE} and the other reasons
+		 */
+		public void onBitrateAdapted(int bitrate, int reason);
+
 		/** Called when some error occurs. */
 		public void onSessionError(int reason, int streamType, Exception e);
 
@@ -182,12 +191,18 @@ public class Session {
 	void addVideoTrack(VideoStream track) {
 		removeVideoTrack();
 		mVideoStream = track;
+		mVideoStream.getBitrateController().setListener(new BitrateController.Listener() {
+			@Override
+			public void onBitrateAdapted(int bitrate, int reason) {
+				postBitrateAdapted(bitrate, reason);
+			}
+		});
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void removeAudioTrack() {
 		if (mAudioStream != null) {
-			mAudioStream.stop();
+			mAudioStream.release();
 			mAudioStream = null;
 		}
 	}
@@ -196,6 +211,7 @@ public class Session {
 	void removeVideoTrack() {
 		if (mVideoStream != null) {
 			mVideoStream.stopPreview();
+			mVideoStream.release();
 			mVideoStream = null;
 		}
 	}
@@ -636,6 +652,21 @@ public class Session {
 		});
 	}	
 
+	/** 
+	 * Asks the encoder of the {@link VideoStream} to produce a key frame as soon as possible.
+	 * See {@link VideoStream#requestKeyFrame()}.
+	 */
+	public void requestKeyFrame() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mVideoStream != null) {
+					mVideoStream.requestKeyFrame();
+				}
+			}
+		});
+	}
+
 	/** Deletes all existing tracks & release associated resources. */
 	public void release() {
 		removeAudioTrack();
@@ -687,6 +718,17 @@ public class Session {
 		});
 	}	
 
+	private void postBitrateAdapted(final int bitrate, final int reason) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mCallback != null) {
+					mCallback.onBitrateAdapted(bitrate, reason); 
+				}
+			}
+		});
+	}
+
 	private void postError(final int reason, final int streamType,final Exception e) {
 		mMainHandler.post(new Runnable() {
 			@Override
@@ -24,9 +24,14 @@ import net.majorkernelpanic.streaming.audio.AACStream;
 import net.majorkernelpanic.streaming.audio.AMRNBStream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.audio.G711Stream;
+import net.majorkernelpanic.streaming.audio.OpusStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtp.G711Packetizer;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
+import net.majorkernelpanic.streaming.video.VP8Stream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.content.Context;
@@ -49,6 +54,12 @@ public class SessionBuilder {
 	/** Can be used with {@link #setVideoEncoder}. */
 	public final static int VIDEO_H263 = 2;
 
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_H265 = 3;
+
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_VP8 = 4;
+
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_NONE = 0;
 
@@ -58,6 +69,15 @@ public class SessionBuilder {
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_AAC = 5;
 
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_OPUS = 6;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_PCMU = 7;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_PCMA = 8;
+
 	// Default configuration
 	private VideoQuality mVideoQuality = VideoQuality.DEFAULT_VIDEO_QUALITY;
 	private AudioQuality mAudioQuality = AudioQuality.DEFAULT_AUDIO_QUALITY;
@@ -118,6 +138,15 @@ public class SessionBuilder {
 		case AUDIO_AMRNB:
 			session.addAudioTrack(new AMRNBStream());
 			break;
+		case AUDIO_OPUS:
+			session.addAudioTrack(new OpusStream());
+			break;
+		case AUDIO_PCMU:
+			session.addAudioTrack(new G711Stream(G711Packetizer.PCMU));
+			break;
+		case AUDIO_PCMA:
+			session.addAudioTrack(new G711Stream(G711Packetizer.PCMA));
+			break;
 		}
 
 		switch (mVideoEncoder) {
@@ -130,6 +159,15 @@ public class SessionBuilder {
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
 			session.addVideoTrack(stream);
 			break;
+		case VIDEO_H265:
+			H265Stream hevc = new H265Stream(mCamera);
+			if (mContext!=null) 
+				hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
+			session.addVideoTrack(hevc);
+			break;
+		case VIDEO_VP8:
+			session.addVideoTrack(new VP8Stream(mCamera));
+			break;
 		}
 
 		if (session.getVideoTrack()!=null) {
@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
+import net.majorkernelpanic.streaming.rtp.AbstractAACPacketizer;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
@@ -39,6 +40,7 @@ import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Environment;
+import android.util.Base64;
 import android.service.textservice.SpellCheckerService.Session;
 import android.util.Log;
 
@@ -53,6 +55,9 @@ public class AACStream extends AudioStream {
 
 	public final static String TAG = "AACStream";
 
+	/** Frames fed to the encoder after a talkspurt, so that the lookahead of the encoder gives out its last frames. */
+	private final static int TRAILING_FRAMES = 2;
+
 	/** MPEG-4 Audio Object Types supported by ADTS. **/
 	private static final String[] AUDIO_OBJECT_TYPES = {
 		"NULL",							  // 0
@@ -87,6 +92,12 @@ public class AACStream extends AudioStream {
 	private SharedPreferences mSettings = null;
 	private AudioRecord mAudioRecord = null;
 	private Thread mThread = null;
+	private int mMaxPtime = 0;
+	private int mFrameLength = 1024;
+	private boolean mSilenceSuppression = false;
+	private int mComfortNoiseInterval = 0;
+	private VoiceActivityDetector mDetector = null;
+	private volatile long mSuppressedFrames = 0;
 
 	public AACStream() {
 		super();
@@ -118,6 +129,44 @@ public class AACStream extends AudioStream {
 		mSettings = prefs;
 	}
 
+	/**
+	 * Several AAC frames can be sent in each RTP packet (RFC 3640), which lowers the packet rate
+	 * at the expense of latency. 
+	 * @param maxPtime The maximum duration of the audio carried by a packet in ms, 0 (the default) for one frame per packet
+	 */
+	public void setMaxPtime(int maxPtime) {
+		mMaxPtime = maxPtime;
+	}
+
+	/**
+	 * Enables the suppression of the silences, only with the MediaCodec API. A {@link VoiceActivityDetector} 
+	 * analyses the samples, and those that are not speech are not encoded nor sent. The timestamps of 
+	 * the next talkspurt go on from the sample count, so the receiver sees how long the silence lasted.
+	 * Changes will take effect next time you call {@link #start()}.
+	 */
+	public void setSilenceSuppression(boolean enabled) {
+		mSilenceSuppression = enabled;
+	}
+
+	/**
+	 * During the silences, a frame of the background noise is still sent every so often, 
+	 * so that the receiver can play some comfort noise and NATs keep the binding.
+	 * @param interval The interval in ms, 0 (the default) to send nothing during the silences
+	 */
+	public void setComfortNoiseInterval(int interval) {
+		mComfortNoiseInterval = interval;
+	}
+
+	/** Returns the detector used by the last stream started with the silence suppression, or null. */
+	public VoiceActivityDetector getVoiceActivityDetector() {
+		return mDetector;
+	}
+
+	/** Returns the number of frames of the last stream that were neither encoded nor sent. */
+	public long getSuppressedFrameCount() {
+		return mSuppressedFrames;
+	}
+
 	@Override
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!mStreaming) {
@@ -141,8 +190,10 @@ public class AACStream extends AudioStream {
 		// If he did, we force a reasonable one: 16 kHz
 		if (i>12) mQuality.samplingRate = 16000;
 
-		if (mMode != mRequestedMode || mPacketizer==null) {
-			mMode = mRequestedMode;
+		// ADTS can not carry the low delay profiles, the MediaRecorder is not used for them
+		mMode = mQuality.profile != AudioQuality.AAC_LC ? MODE_MEDIACODEC_API : mRequestedMode;
+		if (mPacketizer==null || (mPacketizer instanceof AACADTSPacketizer) != (mMode == MODE_MEDIARECORDER_API)) {
+			if (mPacketizer!=null) mPacketizer.getRtpSocket().close();
 			if (mMode == MODE_MEDIARECORDER_API) {
 				mPacketizer = new AACADTSPacketizer();
 			} else { 
@@ -151,10 +202,13 @@ public class AACStream extends AudioStream {
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
 		}
+		((AbstractAACPacketizer)mPacketizer).setMaxPtime(mMaxPtime);
 
 		if (mMode == MODE_MEDIARECORDER_API) {
 
 			testADTS();
+			mFrameLength = 1024;
+			((AbstractAACPacketizer)mPacketizer).setFrameLength(mFrameLength);
 
 			// All the MIME types parameters used here are described in RFC 3640
 			// SizeLength: 13 bits will be enough because ADTS uses 13 bits for frame length
@@ -164,17 +218,29 @@ public class AACStream extends AudioStream {
 
 			mSessionDescription = "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 					"a=rtpmap:96 mpeg4-generic/"+mQuality.samplingRate+"\r\n"+
-					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+Integer.toHexString(mConfig)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+Integer.toHexString(mConfig)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n"+
+					(mMaxPtime > 0 ? "a=maxptime:"+mMaxPtime+"\r\n" : "");
 
 		} else {
 
-			mProfile = 2; // AAC LC
+			mProfile = mQuality.profile;
 			mChannel = 1;
 			mConfig = (mProfile & 0x1F) << 11 | (mSamplingRateIndex & 0x0F) << 7 | (mChannel & 0x0F) << 3;
 
+			byte[] asc;
+			if (mProfile == AudioQuality.AAC_LC) {
+				asc = new byte[] {(byte) (mConfig>>8), (byte) mConfig};
+			} else {
+				// The AudioSpecificConfig of the low delay profiles depends on the frame length chosen by the encoder
+				asc = testMediaCodec();
+			}
+			mFrameLength = getFrameLength(asc);
+			((AbstractAACPacketizer)mPacketizer).setFrameLength(mFrameLength);
+
 			mSessionDescription = "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 					"a=rtpmap:96 mpeg4-generic/"+mQuality.samplingRate+"\r\n"+
-					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+Integer.toHexString(mConfig)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";			
+					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+toHexString(asc)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n"+
+					(mMaxPtime > 0 ? "a=maxptime:"+mMaxPtime+"\r\n" : "");
 
 		}
 
@@ -191,47 +257,84 @@ public class AACStream extends AudioStream {
 	@SuppressLint({ "InlinedApi", "NewApi" })
 	protected void encodeWithMediaCodec() throws IOException {
 
-		final int bufferSize = AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
+		// Each input buffer of the encoder holds exactly one frame, so that no samples wait in the encoder
+		final int frameSize = 2*mFrameLength;
+		final int bufferSize = Math.max(AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2, 4*frameSize);
 
 		((AACLATMPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
 
 		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
-		MediaFormat format = new MediaFormat();
-		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
-		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
-		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-		format.setInteger(MediaFormat.KEY_SAMPLE_RATE, mQuality.samplingRate);
-		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
-		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mMediaCodec = createEncoder(frameSize);
 		mAudioRecord.startRecording();
 		mMediaCodec.start();
 
 		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
 		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+		final SampleClock clock = new SampleClock(mQuality.samplingRate);
+		final VoiceActivityDetector detector = mSilenceSuppression ? new VoiceActivityDetector(mQuality.samplingRate) : null;
+		final AACLATMPacketizer packetizer = (AACLATMPacketizer) mPacketizer;
+		final long comfortNoiseInterval = mComfortNoiseInterval*1000L;
+		mDetector = detector;
+		mSuppressedFrames = 0;
+		packetizer.resetTalkspurts();
 
 		mThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
-				int len = 0, bufferIndex = 0;
+				int len = 0, bufferIndex = -1, trailing = 0;
+				long pts = 0, lastPts = 0;
+				boolean talkspurt = true;
 				try {
 					while (!Thread.interrupted()) {
-						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
+						// The input buffer of a suppressed frame is filled again with the next one
+						if (bufferIndex<0) bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
 						if (bufferIndex>=0) {
-							inputBuffers[bufferIndex].clear();
-							len = mAudioRecord.read(inputBuffers[bufferIndex], bufferSize);
-							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+							ByteBuffer input = inputBuffers[bufferIndex];
+							input.clear();
+							len = readFrame(input, frameSize);
+							if (len < 0) {
 								Log.e(TAG,"An error occured with the AudioRecord API !");
-							} else {
-								//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
-								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+								mMediaCodec.queueInputBuffer(bufferIndex, 0, 0, 0, 0);
+								bufferIndex = -1;
+								continue;
+							}
+							pts = clock.next(len/2);
+							if (detector != null) {
+								if (detector.process(input, len)) {
+									if (!talkspurt) packetizer.startTalkspurt(pts);
+									talkspurt = true;
+									lastPts = pts;
+								} else if (talkspurt) {
+									// The encoder keeps the last frames of the talkspurt until it gets the next ones
+									packetizer.endTalkspurt(lastPts);
+									talkspurt = false;
+									trailing = TRAILING_FRAMES;
+								} else if (trailing == 0 && comfortNoiseInterval > 0 && pts-lastPts >= comfortNoiseInterval) {
+									// A frame of comfort noise is a talkspurt of a single frame
+									packetizer.startTalkspurt(pts);
+									packetizer.endTalkspurt(pts);
+									trailing = TRAILING_FRAMES;
+									lastPts = pts;
+								} else if (trailing > 0) {
+									trailing--;
+								} else {
+									mSuppressedFrames++;
+									continue;
+								}
 							}
+							mMediaCodec.queueInputBuffer(bufferIndex, 0, len, pts, 0);
+							bufferIndex = -1;
 						}
 					}
 				} catch (RuntimeException e) {
 					e.printStackTrace();
+					return;
 				}
+				// The encoder is drained, the packetizer stops once it has sent the last AUs
+				try {
+					if (bufferIndex<0) bufferIndex = mMediaCodec.dequeueInputBuffer(100000);
+					if (bufferIndex>=0) mMediaCodec.queueInputBuffer(bufferIndex, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				} catch (RuntimeException ignore) {}
 			}
 		});
 
@@ -245,13 +348,56 @@ public class AACStream extends AudioStream {
 
 	}
 
+	/** 
+	 * Fills the buffer with a frame read from the AudioRecord, the AudioRecord writes 
+	 * at the position of the buffer. Returns -1 if the AudioRecord fails.
+	 */
+	@SuppressLint("NewApi")
+	private int readFrame(ByteBuffer buffer, int frameSize) {
+		int len = 0, read;
+		while (len < frameSize) {
+			buffer.position(len);
+			read = mAudioRecord.read(buffer, frameSize-len);
+			if (read == AudioRecord.ERROR_INVALID_OPERATION || read == AudioRecord.ERROR_BAD_VALUE) return -1;
+			// The AudioRecord has been stopped
+			if (read <= 0) break;
+			len += read;
+		}
+		buffer.position(0);
+		return len;
+	}
+
+	/** Creates and configures the AAC encoder, with the profile of the stream. */
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	private MediaCodec createEncoder(int maxInputSize) throws IOException {
+		MediaCodec codec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+		MediaFormat format = new MediaFormat();
+		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
+		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
+		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+		format.setInteger(MediaFormat.KEY_SAMPLE_RATE, mQuality.samplingRate);
+		// The audio object types are also the values of MediaCodecInfo.CodecProfileLevel.AACObjectLC, AACObjectLD and AACObjectELD
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, mQuality.profile);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+		codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		return codec;
+	}
+
 	/** Stops the stream. */
 	public synchronized void stop() {
 		if (mStreaming) {
 			if (mMode==MODE_MEDIACODEC_API) {
 				Log.d(TAG, "Interrupting threads...");
 				mThread.interrupt();
+				if (mDetector != null) {
+					Log.d(TAG, mSuppressedFrames+" frames out of "+mDetector.getFrameCount()+" suppressed, "+mDetector.getTalkspurtCount()+" talkspurts");
+				}
 				mAudioRecord.stop();
+				// The thread drains the encoder, and the packetizer sends the last AUs before the codec is stopped
+				try {
+					mThread.join(200);
+				} catch (InterruptedException ignore) {}
+				((AACLATMPacketizer)mPacketizer).awaitEndOfStream(200);
 				mAudioRecord.release();
 				mAudioRecord = null;
 			}
@@ -369,4 +515,190 @@ public class AACStream extends AudioStream {
 
 	}
 
+
+	/** 
+	 * Encodes a little silence with the low delay profile to get the AudioSpecificConfig of the encoder.
+	 * If the encoder does not give it, the frames are assumed to be 512 samples long.
+	 * The result is saved in the shared preferences. Should not be called by the UI thread.
+	 */
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	private byte[] testMediaCodec() throws IOException {
+		String key = PREF_PREFIX+"aac-mc-"+mQuality.profile+"-"+mQuality.samplingRate;
+
+		if (mSettings!=null && mSettings.contains(key)) {
+			return Base64.decode(mSettings.getString(key, ""), Base64.NO_WRAP);
+		}
+
+		byte[] asc = null;
+		MediaCodec codec = createEncoder(4096);
+		try {
+			codec.start();
+			ByteBuffer[] inputBuffers = codec.getInputBuffers();
+			ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			long now = System.nanoTime()/1000, elapsed = 0, pts = 0;
+
+			while (asc == null && elapsed < 1000000) {
+				int index = codec.dequeueInputBuffer(10000);
+				if (index >= 0) {
+					ByteBuffer input = inputBuffers[index];
+					input.clear();
+					int len = Math.min(input.remaining(), 2048);
+					input.put(new byte[len]);
+					codec.queueInputBuffer(index, 0, len, pts, 0);
+					pts += len/2*1000000L/mQuality.samplingRate;
+				}
+				index = codec.dequeueOutputBuffer(info, 10000);
+				if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					ByteBuffer csd = codec.getOutputFormat().getByteBuffer("csd-0");
+					if (csd != null) {
+						asc = new byte[csd.remaining()];
+						csd.get(asc);
+					}
+				} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outputBuffers = codec.getOutputBuffers();
+				} else if (index >= 0) {
+					if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 && info.size > 0) {
+						asc = new byte[info.size];
+						outputBuffers[index].position(info.offset);
+						outputBuffers[index].get(asc);
+					}
+					codec.releaseOutputBuffer(index, false);
+				}
+				elapsed = System.nanoTime()/1000 - now;
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG,"Could not get the AudioSpecificConfig of the encoder: "+e.getMessage());
+		} finally {
+			try {
+				codec.stop();
+			} catch (Exception ignore) {}
+			codec.release();
+		}
+
+		if (asc == null) {
+			Log.e(TAG,"The encoder did not give its AudioSpecificConfig, 512 samples per frame assumed");
+			asc = createLowDelayConfig(mQuality.profile, mSamplingRateIndex, mChannel);
+		} else if (mSettings!=null) {
+			Editor editor = mSettings.edit();
+			editor.putString(key, Base64.encodeToString(asc, Base64.NO_WRAP));
+			editor.commit();
+		}
+
+		return asc;
+	}
+
+	/** 
+	 * Writes the AudioSpecificConfig of an AAC-LD (GASpecificConfig) or AAC-ELD (ELDSpecificConfig) 
+	 * stream with 512 samples per frame and no error resilience tool, see ISO/IEC 14496-3 1.6.2.1.
+	 */
+	private static byte[] createLowDelayConfig(int profile, int samplingRateIndex, int channel) {
+		long bits;
+		int count;
+		if (profile == AudioQuality.AAC_ELD) {
+			// Object type escaped (31 and 32+7), then frameLengthFlag, 3 resilience flags, ldSbrPresentFlag, ELDEXT_TERM
+			bits = 31L<<6 | (profile-32);
+			bits = bits<<4 | samplingRateIndex;
+			bits = bits<<4 | channel;
+			bits = bits<<9;
+			count = 5+6+4+4+9;
+		} else {
+			// frameLengthFlag, dependsOnCoreCoder, extensionFlag set, 3 resilience flags, extensionFlag3
+			bits = profile;
+			bits = bits<<4 | samplingRateIndex;
+			bits = bits<<4 | channel;
+			bits = bits<<7 | 0x10;
+			count = 5+4+4+7;
+		}
+		// epConfig
+		bits <<= 2;
+		count += 2;
+		byte[] asc = new byte[(count+7)/8];
+		bits <<= asc.length*8-count;
+		for (int i=asc.length-1;i>=0;i--) {
+			asc[i] = (byte) bits;
+			bits >>= 8;
+		}
+		return asc;
+	}
+
+	/** Returns the number of samples in a frame, from the frameLengthFlag of an AudioSpecificConfig. */
+	private static int getFrameLength(byte[] asc) {
+		long bits = 0;
+		for (int i=0;i<Math.min(asc.length, 8);i++) bits |= (long) (asc[i]&0xFF) << (56-8*i);
+		int pos = 0;
+		int profile = (int) (bits>>>(59-pos)) & 0x1F;
+		pos += 5;
+		if (profile == 31) {
+			profile = 32 + ((int) (bits>>>(58-pos)) & 0x3F);
+			pos += 6;
+		}
+		// Sampling frequency index, and the frequency itself when it is escaped
+		int index = (int) (bits>>>(60-pos)) & 0x0F;
+		pos += index == 15 ? 28 : 4;
+		// Channel configuration
+		pos += 4;
+		boolean frameLengthFlag = ((bits>>>(63-pos)) & 0x01) != 0;
+		if (profile == AudioQuality.AAC_LD || profile == AudioQuality.AAC_ELD) return frameLengthFlag ? 480 : 512;
+		return frameLengthFlag ? 960 : 1024;
+	}
+
+	private static String toHexString(byte[] buffer) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0;i<buffer.length;i++) {
+			sb.append(Character.forDigit((buffer[i]>>4)&0x0F, 16));
+			sb.append(Character.forDigit(buffer[i]&0x0F, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Computes the presentation times of the samples read from an AudioRecord.
+	 * The times are deduced from the number of samples read, from an origin taken once on the
+	 * monotonic clock, so they do not carry the scheduling jitter of the reads.
+	 * The drift between the clock of the microphone and the monotonic clock is corrected every second:
+	 * a read can not return before its last sample has been recorded, so the smallest delay seen 
+	 * between the computed end of a read and the time it returned is the error of the origin.
+	 */
+	static class SampleClock {
+
+		/** The origin is moved by at most 1 ms every second, the RTP timestamps hardly notice it. */
+		private final static long MAX_CORRECTION = 1000;
+
+		private final int mSamplingRate;
+		private long mOrigin = -1, mSamples = 0, mWindowEnd = 0;
+		private long mMinDelay = Long.MAX_VALUE;
+
+		public SampleClock(int samplingRate) {
+			mSamplingRate = samplingRate;
+		}
+
+		/** 
+		 * Returns the presentation time in us of the first sample of a read that just returned.
+		 * @param samples The number of samples read
+		 */
+		public long next(int samples) {
+			long now = System.nanoTime()/1000;
+			if (mOrigin < 0) {
+				mOrigin = now - toUs(samples);
+				mWindowEnd = mSamplingRate;
+			}
+			long pts = mOrigin + toUs(mSamples);
+			mSamples += samples;
+
+			mMinDelay = Math.min(mMinDelay, now - mOrigin - toUs(mSamples));
+			if (mSamples >= mWindowEnd) {
+				mOrigin += Math.max(-MAX_CORRECTION, Math.min(mMinDelay, MAX_CORRECTION));
+				mMinDelay = Long.MAX_VALUE;
+				mWindowEnd = mSamples + mSamplingRate;
+			}
+			return pts;
+		}
+
+		private long toUs(long samples) {
+			return samples*1000000L/mSamplingRate;
+		}
+
+	}
+
 }
@@ -34,6 +34,8 @@ import android.service.textservice.SpellCheckerService.Session;
  */
 public class AMRNBStream extends AudioStream {
 
+	private int mPtime = 20;
+
 	public AMRNBStream() {
 		super();
 
@@ -53,6 +55,15 @@ public class AMRNBStream extends AudioStream {
 		
 	}
 
+	/**
+	 * Several AMR frames can be sent in each RTP packet (RFC 3267), which lowers the packet rate
+	 * at the expense of latency.
+	 * @param ptime The duration of the audio carried by a packet in ms, a multiple of 20 ms (20 by default)
+	 */
+	public void setPtime(int ptime) {
+		mPtime = Math.max(1, Math.min(ptime/20, AMRNBPacketizer.MAX_FRAMES_PER_PACKET))*20;
+	}
+
 	/**
 	 * Starts the stream.
 	 */
@@ -67,6 +78,7 @@ public class AMRNBStream extends AudioStream {
 		super.configure();
 		mMode = MODE_MEDIARECORDER_API;
 		mQuality = mRequestedQuality.clone();
+		((AMRNBPacketizer)mPacketizer).setPtime(mPtime);
 	}
 
 	/**
@@ -75,7 +87,9 @@ public class AMRNBStream extends AudioStream {
 	public String getSessionDescription() {
 		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 AMR/8000\r\n" +
-				"a=fmtp:96 octet-align=1;\r\n";
+				"a=fmtp:96 octet-align=1;\r\n" +
+				"a=ptime:"+mPtime+"\r\n" +
+				"a=maxptime:"+mPtime+"\r\n";
 	}
 
 	@Override
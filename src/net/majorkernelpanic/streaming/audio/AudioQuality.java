@@ -26,6 +26,15 @@ public class AudioQuality {
 	/** Default audio stream quality. */
 	public final static AudioQuality DEFAULT_AUDIO_QUALITY = new AudioQuality(8000,32000);
 
+	/** AAC Low Complexity, 1024 samples per frame. The default profile of {@link AACStream}. */
+	public final static int AAC_LC = 2;
+
+	/** AAC Low Delay, 480 or 512 samples per frame. Only with the MediaCodec API. */
+	public final static int AAC_LD = 23;
+
+	/** AAC Enhanced Low Delay, 480 or 512 samples per frame. Only with the MediaCodec API. */
+	public final static int AAC_ELD = 39;
+
 	/**	Represents a quality for a video stream. */ 
 	public AudioQuality() {}
 
@@ -39,17 +48,31 @@ public class AudioQuality {
 		this.bitRate = bitRate;
 	}	
 
+	/**
+	 * Represents a quality for an AAC stream.
+	 * @param samplingRate The sampling rate
+	 * @param bitRate The bitrate in bit per seconds
+	 * @param profile {@link #AAC_LC}, {@link #AAC_LD} or {@link #AAC_ELD}
+	 */
+	public AudioQuality(int samplingRate, int bitRate, int profile) {
+		this(samplingRate, bitRate);
+		this.profile = profile;
+	}
+
 	public int samplingRate = 0;
 	public int bitRate = 0;
+	/** The MPEG-4 audio object type used by {@link AACStream}, ignored by the other streams. */
+	public int profile = AAC_LC;
 
 	public boolean equals(AudioQuality quality) {
 		if (quality==null) return false;
 		return (quality.samplingRate == this.samplingRate     &&
-				quality.bitRate == this.bitRate);
+				quality.bitRate == this.bitRate &&
+				quality.profile == this.profile);
 	}
 
 	public AudioQuality clone() {
-		return new AudioQuality(samplingRate, bitRate);
+		return new AudioQuality(samplingRate, bitRate, profile);
 	}
 
 	public static AudioQuality parseQuality(String str) {
@@ -59,10 +82,18 @@ public class AudioQuality {
 			try {
 				quality.bitRate = Integer.parseInt(config[0])*1000; // conversion to bit/s
 				quality.samplingRate = Integer.parseInt(config[1]);
+				quality.profile = parseProfile(config[2]);
 			}
 			catch (IndexOutOfBoundsException ignore) {}
 		}
 		return quality;
 	}
 
+	/** Parses "lc", "ld" or "eld". */
+	public static int parseProfile(String str) {
+		if (str.equalsIgnoreCase("eld")) return AAC_ELD;
+		if (str.equalsIgnoreCase("ld")) return AAC_LD;
+		return AAC_LC;
+	}
+
 }
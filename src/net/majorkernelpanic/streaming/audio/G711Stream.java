@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.ByteSource;
+import net.majorkernelpanic.streaming.rtp.G711Packetizer;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Log;
+
+/**
+ * A class for streaming G.711 (PCMU or PCMA) from the microphone of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * The packetizer reads the samples of an AudioRecord and encodes them itself,
+ * neither the MediaRecorder nor a MediaCodec are used.
+ */
+public class G711Stream extends AudioStream {
+
+	public final static String TAG = "G711Stream";
+
+	private final int mPayloadType;
+	private AudioRecord mAudioRecord = null;
+	private int mPtime = 20;
+
+	/** Constructs a PCMU stream. */
+	public G711Stream() {
+		this(G711Packetizer.PCMU);
+	}
+
+	/**
+	 * Constructs the G.711 stream.
+	 * @param payloadType Can be either {@link G711Packetizer#PCMU} or {@link G711Packetizer#PCMA}
+	 */
+	public G711Stream(int payloadType) {
+		super();
+		mPayloadType = payloadType == G711Packetizer.PCMA ? G711Packetizer.PCMA : G711Packetizer.PCMU;
+		mPacketizer = new G711Packetizer();
+		((G711Packetizer)mPacketizer).setPayloadType(mPayloadType);
+		setAudioSource(MediaRecorder.AudioSource.MIC);
+	}
+
+	/**
+	 * Sets the duration of the audio carried by each RTP packet in ms, a multiple of 10 ms (20 by default).
+	 * Changes will take effect next time you call {@link #configure()}.
+	 */
+	public void setPtime(int ptime) {
+		mPtime = Math.max(1, Math.min(ptime/10, 10))*10;
+	}
+
+	/**
+	 * Starts the stream.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			super.start();
+		}
+	}
+
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		// G.711 is always 64 kbit/s at 8 kHz, the samples are read by the packetizer
+		mMode = MODE_MEDIACODEC_API;
+		mQuality = new AudioQuality(8000, 64000);
+		((G711Packetizer)mPacketizer).setPtime(mPtime);
+	}
+
+	@Override
+	protected void encodeWithMediaRecorder() throws IOException {
+		throw new IllegalStateException("G.711 can not be encoded with the MediaRecorder API !");
+	}
+
+	/** Starts the AudioRecord, the packetizer encodes its samples. */
+	@Override
+	protected void encodeWithMediaCodec() throws IOException {
+		// The buffer of the AudioRecord holds a few packets
+		int bufferSize = Math.max(AudioRecord.getMinBufferSize(8000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT), 4*16*mPtime);
+		mAudioRecord = new AudioRecord(mAudioSource, 8000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		mAudioRecord.startRecording();
+
+		// A blocking AudioRecord only returns once the whole read is done, so the packetizer
+		// reads one packet worth of samples at a time, straight from the AudioRecord
+		mPacketizer.setInputStream(new ByteSource(new AudioRecordInputStream(mAudioRecord), 16*mPtime));
+		mPacketizer.start();
+
+		mStreaming = true;
+	}
+
+	/** Stops the stream. */
+	public synchronized void stop() {
+		if (mStreaming) {
+			// Stopping the packetizer stops the AudioRecord, which unblocks the packetizer
+			mPacketizer.stop();
+			mAudioRecord.release();
+			mAudioRecord = null;
+			mStreaming = false;
+		}
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() {
+		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP "+mPayloadType+"\r\n" +
+				"a=rtpmap:"+mPayloadType+" "+(mPayloadType == G711Packetizer.PCMU ? "PCMU" : "PCMA")+"/8000\r\n" +
+				"a=ptime:"+mPtime+"\r\n";
+	}
+
+	/** Reads the samples of an AudioRecord, 16 bits little endian. Closing the stream stops the AudioRecord. */
+	static class AudioRecordInputStream extends InputStream {
+
+		private final AudioRecord mAudioRecord;
+		private final byte[] mByte = new byte[1];
+
+		public AudioRecordInputStream(AudioRecord audioRecord) {
+			mAudioRecord = audioRecord;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(mByte, 0, 1) < 0 ? -1 : mByte[0]&0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int len = mAudioRecord.read(buffer, offset, length);
+			if (len == AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+				Log.e(TAG,"An error occured with the AudioRecord API !");
+				return -1;
+			}
+			// Once stopped, the AudioRecord returns 0
+			return len > 0 ? len : -1;
+		}
+
+		@Override
+		public void close() {
+			try {
+				mAudioRecord.stop();
+			} catch (IllegalStateException ignore) {}
+		}
+
+	}
+
+}
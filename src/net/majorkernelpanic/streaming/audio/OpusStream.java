@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.OpusPacketizer;
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Log;
+
+/**
+ * A class for streaming Opus from the microphone of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setAudioQuality(AudioQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * Opus is encoded with the MediaCodec API, the encoder is available since Android 10 (API 29).
+ */
+public class OpusStream extends AudioStream {
+
+	public final static String TAG = "OpusStream";
+
+	private final static String MIME_TYPE = "audio/opus";
+
+	/** Sampling rates supported by the Opus encoder. */
+	private final static int[] SAMPLING_RATES = {48000, 24000, 16000, 12000, 8000};
+
+	private AudioRecord mAudioRecord = null;
+	private Thread mThread = null;
+	private int mFrameDuration = 20;
+	private boolean mInbandFec = true;
+
+	public OpusStream() {
+		super();
+
+		if (!OpusStreamingSupported()) {
+			Log.e(TAG,"Opus not supported on this phone");
+			throw new RuntimeException("Opus not supported by this phone !");
+		}
+
+		mPacketizer = new OpusPacketizer();
+		setAudioSource(MediaRecorder.AudioSource.MIC);
+	}
+
+	@SuppressLint("NewApi")
+	private static boolean OpusStreamingSupported() {
+		if (Build.VERSION.SDK_INT<29) return false;
+		MediaCodecInfo[] codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+		for (int i=0;i<codecs.length;i++) {
+			if (!codecs[i].isEncoder()) continue;
+			String[] types = codecs[i].getSupportedTypes();
+			for (int j=0;j<types.length;j++) {
+				if (types[j].equalsIgnoreCase(MIME_TYPE)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the duration of the audio carried by each RTP packet in ms: 20 (the default) or 40 ms.
+	 * The encoder emits 20 ms frames, two of them are grouped in a packet of 40 ms, which halves the packet rate.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 */
+	public void setFrameDuration(int duration) {
+		mFrameDuration = duration < 40 ? 20 : 40;
+	}
+
+	/**
+	 * Tells the other end whether this end can use the in-band FEC of Opus, enabled by default.
+	 * Changes will take effect next time you call {@link #configure()}.
+	 */
+	public void setInbandFecEnabled(boolean enabled) {
+		mInbandFec = enabled;
+	}
+
+	@Override
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			super.start();
+		}
+	}
+
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mMode = MODE_MEDIACODEC_API;
+		mQuality = mRequestedQuality.clone();
+
+		// Checks if the user has supplied an exotic sampling rate
+		int i=0;
+		for (;i<SAMPLING_RATES.length;i++) {
+			if (SAMPLING_RATES[i] == mQuality.samplingRate) break;
+		}
+		// If he did, we use the native sampling rate of Opus
+		if (i == SAMPLING_RATES.length) mQuality.samplingRate = 48000;
+
+		((OpusPacketizer)mPacketizer).setPtime(mFrameDuration);
+	}
+
+	@Override
+	protected void encodeWithMediaRecorder() throws IOException {
+		throw new IllegalStateException("Opus can only be encoded with the MediaCodec API !");
+	}
+
+	@Override
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	protected void encodeWithMediaCodec() throws IOException {
+
+		final int bufferSize = AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
+
+		mAudioRecord = new AudioRecord(mAudioSource, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+		MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mQuality.samplingRate, 1);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
+		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mAudioRecord.startRecording();
+		mMediaCodec.start();
+
+		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
+		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int len = 0, bufferIndex = 0;
+				try {
+					while (!Thread.interrupted()) {
+						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
+						if (bufferIndex>=0) {
+							inputBuffers[bufferIndex].clear();
+							len = mAudioRecord.read(inputBuffers[bufferIndex], bufferSize);
+							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+								Log.e(TAG,"An error occured with the AudioRecord API !");
+							} else {
+								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+							}
+						}
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+
+		mThread.start();
+
+		// The packetizer encapsulates this stream in an RTP stream and send it over the network
+		mPacketizer.setInputStream(inputStream);
+		mPacketizer.start();
+
+		mStreaming = true;
+
+	}
+
+	/** Stops the stream. */
+	public synchronized void stop() {
+		if (mStreaming) {
+			Log.d(TAG, "Interrupting threads...");
+			mThread.interrupt();
+			mAudioRecord.stop();
+			mAudioRecord.release();
+			mAudioRecord = null;
+			super.stop();
+		}
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 * The clock rate of Opus is always 48 kHz and two channels are announced (See section 7 of RFC 7587),
+	 * the stream is mono.
+	 */
+	public String getSessionDescription() {
+		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 opus/48000/2\r\n" +
+				"a=fmtp:96 useinbandfec="+(mInbandFec ? 1 : 0)+";maxaveragebitrate="+mQuality.bitRate+";sprop-maxcapturerate="+mQuality.samplingRate+"\r\n" +
+				"a=ptime:"+mFrameDuration+"\r\n";
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A simple voice activity detector for 16 bits little endian mono PCM, used to suppress the silences of an audio stream.
+ * A frame is speech when its energy is well above the noise floor, or a little above it with many
+ * zero crossings (fricatives like "s" or "f" carry little energy but cross zero often).
+ * The noise floor follows quiet frames at once, rises slowly on the frames classified as silence and
+ * hardly at all during talkspurts, so it adapts to the background noise but not to a long talk or an alarm.
+ * Speech is held for a while after the last speech frame, so that the ends of words are not cut.
+ */
+public class VoiceActivityDetector {
+
+	public final static String TAG = "VoiceActivityDetector";
+
+	/** Frames quieter than this (in dB of a 16 bits sample) are always silence. */
+	private final static double MIN_LEVEL = 30;
+
+	/** A frame this much above the noise floor (in dB) is speech. */
+	private final static double SPEECH_MARGIN = 9;
+
+	/** A frame this much above the noise floor (in dB) is speech when it crosses zero often. */
+	private final static double FRICATIVE_MARGIN = 4;
+
+	/** Zero crossings per sample above which a frame may be a fricative. */
+	private final static double FRICATIVE_ZCR = 0.25;
+
+	private final int mSamplingRate;
+	private int mHangover = 300;
+	private double mNoiseFloor = -1;
+	private long mHangoverEnd = 0, mSamples = 0;
+	private boolean mSpeech = false;
+	private long mFrameCount = 0, mSilentFrameCount = 0, mTalkspurtCount = 0;
+
+	public VoiceActivityDetector(int samplingRate) {
+		mSamplingRate = samplingRate;
+	}
+
+	/** Sets how long speech is held after the last speech frame in ms, 300 ms by default. */
+	public void setHangover(int hangover) {
+		mHangover = hangover;
+	}
+
+	/**
+	 * Analyses a frame and returns true if it is part of a talkspurt.
+	 * @param pcm The samples, from the position of the buffer, the buffer is not modified
+	 * @param length The length of the frame in bytes
+	 */
+	public boolean process(ByteBuffer pcm, int length) {
+		ByteBuffer samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int start = samples.position(), count = length/2;
+		if (count == 0) return mSpeech;
+
+		long energy = 0;
+		int crossings = 0, previous = 0;
+		for (int i=0;i<count;i++) {
+			int sample = samples.getShort(start+2*i);
+			energy += sample*sample;
+			if ((sample ^ previous) < 0) crossings++;
+			previous = sample;
+		}
+		double level = 10*Math.log10((double) energy/count+1);
+		double zcr = (double) crossings/count;
+
+		// The noise floor drops at once
+		if (mNoiseFloor < 0 || level < mNoiseFloor) mNoiseFloor = level;
+
+		boolean active = level > MIN_LEVEL && (level > mNoiseFloor+SPEECH_MARGIN || (level > mNoiseFloor+FRICATIVE_MARGIN && zcr > FRICATIVE_ZCR));
+
+		mSamples += count;
+		if (active) mHangoverEnd = mSamples + (long) mHangover*mSamplingRate/1000;
+		boolean speech = mSamples <= mHangoverEnd;
+
+		// It rises by 0.1 dB per silent frame, and so slowly during a talkspurt (about 0.1 dB per second)
+		// that only a lasting change of the background noise moves it
+		mNoiseFloor = Math.min(level, mNoiseFloor+(speech ? 0.002 : 0.1));
+
+		if (speech && !mSpeech) mTalkspurtCount++;
+		mSpeech = speech;
+		mFrameCount++;
+		if (!speech) mSilentFrameCount++;
+		return speech;
+	}
+
+	/** Returns true if the last frame was part of a talkspurt. */
+	public boolean isSpeech() {
+		return mSpeech;
+	}
+
+	/** Returns the number of frames analysed. */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/** Returns the number of frames found to be silent. */
+	public long getSilentFrameCount() {
+		return mSilentFrameCount;
+	}
+
+	/** Returns the number of talkspurts that began. */
+	public long getTalkspurtCount() {
+		return mTalkspurtCount;
+	}
+
+}
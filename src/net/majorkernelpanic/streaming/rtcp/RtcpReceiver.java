@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import net.majorkernelpanic.streaming.rtp.Log;
+
+/**
+ * Parses the RTCP packets sent back by the receivers of a stream.
+ * Compound packets may contain receiver reports (RR, or the report blocks of a SR),
+ * SDES, BYE, generic NACK (RFC 4585), PLI, FIR (RFC 5104) and REMB messages.
+ * The last report of each receiver is kept and can be retrieved with its SSRC,
+ * and every message is passed to the {@link Listener}.
+ * Packets are read from the UDP socket of the {@link SenderReport}, or handed over by
+ * the thread that reads the RTSP connection when RTP is interleaved with RTSP.
+ */
+public class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	private final static int PT_SR = 200, PT_RR = 201, PT_SDES = 202, PT_BYE = 203, PT_RTPFB = 205, PT_PSFB = 206;
+	private final static int FMT_NACK = 1, FMT_PLI = 1, FMT_FIR = 4, FMT_AFB = 15;
+	private final static int SDES_CNAME = 1;
+
+	/** Receives the content of the RTCP packets. Methods are called from the thread reading the packets. */
+	public interface Listener {
+
+		/** Called for each report block of a RR or a SR. */
+		public void onReceptionReport(ReceptionReport report);
+
+		/** Called when a receiver asks for the retransmission of some packets. */
+		public void onNack(int senderSsrc, int mediaSsrc, int[] sequenceNumbers);
+
+		/** Called when a receiver lost a part of a picture (PLI). */
+		public void onPictureLoss(int senderSsrc, int mediaSsrc);
+
+		/** Called when a receiver asks for a key frame (FIR). */
+		public void onFullIntraRequest(int senderSsrc, int mediaSsrc);
+
+		/** Called when a receiver estimates the bitrate it can receive (REMB), in bit/s. */
+		public void onRemb(int senderSsrc, long bitrate, int[] mediaSsrcs);
+
+		/** Called when a receiver leaves the session. */
+		public void onBye(int ssrc);
+
+	}
+
+	/** A report block sent by a receiver about one of the streams. */
+	public static class ReceptionReport {
+
+		/** The SSRC of the receiver. */
+		public int reporterSsrc;
+
+		/** The SSRC of the stream. */
+		public int sourceSsrc;
+
+		/** The CNAME of the receiver, if it sent one. */
+		public String cname;
+
+		/** Fraction of the packets lost since the previous report, between 0 and 1. */
+		public float fractionLost;
+
+		/** Number of packets lost since the beginning of the reception. */
+		public int cumulativeLost;
+
+		/** Extended highest sequence number received. */
+		public int highestSequence;
+
+		/** Interarrival jitter, in timestamp units. */
+		public int jitter;
+
+		/** Interarrival jitter in ms, or -1 if the clock frequency of the stream is unknown. */
+		public float jitterMs;
+
+		/** Round trip time in ms, or -1 if the receiver did not get any sender report yet. */
+		public float rtt;
+
+		/** When the report was received in ms, see {@link System#nanoTime()}. */
+		public long receivedAt;
+
+		@Override
+		public String toString() {
+			return "Report of "+(reporterSsrc&0xFFFFFFFFL)+": lost "+(int)(fractionLost*100)+"% ("+cumulativeLost+
+					"), jitter "+jitterMs+" ms, rtt "+rtt+" ms";
+		}
+
+	}
+
+	private final ConcurrentHashMap<Integer, ReceptionReport> mReports = new ConcurrentHashMap<Integer, ReceptionReport>();
+	private final ConcurrentHashMap<Integer, String> mCnames = new ConcurrentHashMap<Integer, String>();
+
+	private volatile Listener mListener = null;
+	private volatile long mClock = 0;
+	private DatagramSocket mSocket = null;
+	private Thread mThread = null;
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Sets the clock frequency of the stream in Hz, needed to convert the jitter in ms. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	/** Returns the last report sent by a receiver, or null. */
+	public ReceptionReport getReport(int ssrc) {
+		return mReports.get(ssrc);
+	}
+
+	/** Returns the last report of each receiver. */
+	public Collection<ReceptionReport> getReports() {
+		return mReports.values();
+	}
+
+	/** Starts reading RTCP packets from the socket, until it is closed. */
+	public synchronized void listen(DatagramSocket socket) {
+		if (mThread != null && mSocket == socket) return;
+		mSocket = socket;
+		mThread = new Thread(this);
+		mThread.start();
+	}
+
+	@Override
+	public void run() {
+		DatagramSocket socket;
+		synchronized (this) {
+			socket = mSocket;
+		}
+		byte[] buffer = new byte[SenderReport.MTU];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			while (true) {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				parse(buffer, 0, packet.getLength());
+			}
+		} catch (IOException e) {
+			// The socket was closed
+		}
+		synchronized (this) {
+			if (mSocket == socket) mThread = null;
+		}
+	}
+
+	/**
+	 * Parses a compound RTCP packet.
+	 * @return false if the packet is malformed
+	 */
+	public boolean parse(byte[] buffer, int offset, int length) {
+		int end = offset+length;
+		while (offset+4 <= end) {
+			int count = buffer[offset]&0x1F;
+			int pt = buffer[offset+1]&0xFF;
+			int len = (getInt(buffer, offset, 4)&0xFFFF)*4+4;
+			if ((buffer[offset]&0xC0) != 0x80 || offset+len > end) {
+				Log.e(TAG, "Malformed RTCP packet");
+				return false;
+			}
+			try {
+				switch (pt) {
+				// The report blocks of a SR follow the 20 bytes of sender info
+				case PT_SR: parseReportBlocks(buffer, offset+28, Math.min(count, (len-28)/24), getInt(buffer, offset+4, 4)); break;
+				case PT_RR: parseReportBlocks(buffer, offset+8, Math.min(count, (len-8)/24), getInt(buffer, offset+4, 4)); break;
+				case PT_SDES: parseSdes(buffer, offset, count, offset+len); break;
+				case PT_BYE: parseBye(buffer, offset+4, count); break;
+				case PT_RTPFB: parseTransportFeedback(buffer, offset, count, len); break;
+				case PT_PSFB: parsePayloadFeedback(buffer, offset, count, len); break;
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				Log.e(TAG, "Malformed RTCP packet (PT="+pt+")");
+				return false;
+			}
+			offset += len;
+		}
+		return true;
+	}
+
+	/** The count must have been checked against the length of the packet, blocks are 24 bytes long. */
+	private void parseReportBlocks(byte[] buffer, int offset, int count, int reporter) {
+		for (int i=0;i<count;i++,offset+=24) {
+			ReceptionReport report = new ReceptionReport();
+			report.reporterSsrc = reporter;
+			report.sourceSsrc = getInt(buffer, offset, 4);
+			report.cname = mCnames.get(reporter);
+			report.fractionLost = (buffer[offset+4]&0xFF)/256f;
+			// Cumulative number of packets lost is a signed 24 bits integer
+			report.cumulativeLost = getInt(buffer, offset+5, 3)<<8>>8;
+			report.highestSequence = getInt(buffer, offset+8, 4);
+			report.jitter = getInt(buffer, offset+12, 4);
+			report.jitterMs = mClock > 0 ? report.jitter*1000f/mClock : -1;
+			report.rtt = computeRtt(getInt(buffer, offset+16, 4), getInt(buffer, offset+20, 4));
+			report.receivedAt = System.nanoTime()/1000000;
+			mReports.put(reporter, report);
+			Listener listener = mListener;
+			if (listener != null) listener.onReceptionReport(report);
+		}
+	}
+
+	/**
+	 * The receiver sends back the middle 32 bits of the NTP timestamp of the last SR it received (LSR)
+	 * and the time elapsed since then (DLSR), both in 1/65536 s. Sender reports are timestamped with
+	 * {@link System#nanoTime()}, so the arrival time is measured with the same clock.
+	 */
+	private float computeRtt(int lsr, int dlsr) {
+		if (lsr == 0) return -1;
+		long now = System.nanoTime();
+		long hb = now/1000000000;
+		long lb = ((now - hb*1000000000)*4294967296L)/1000000000;
+		int middle = (int) (((hb&0xFFFF)<<16) | (lb>>>16));
+		long rtt = (middle - lsr - dlsr)&0xFFFFFFFFL;
+		// Negative or absurd values mean that the report is not related to our sender reports
+		if (rtt > 65536L*60) return -1;
+		return rtt*1000f/65536f;
+	}
+
+	private void parseSdes(byte[] buffer, int start, int count, int end) {
+		int offset = start+4;
+		for (int i=0;i<count && offset+4<=end;i++) {
+			int ssrc = getInt(buffer, offset, 4);
+			offset += 4;
+			while (offset < end && buffer[offset] != 0) {
+				int type = buffer[offset]&0xFF, len = buffer[offset+1]&0xFF;
+				if (type == SDES_CNAME) {
+					try {
+						mCnames.put(ssrc, new String(buffer, offset+2, len, "UTF-8"));
+					} catch (IOException ignore) {}
+				}
+				offset += 2+len;
+			}
+			// Chunks end with a null item and are padded to a multiple of 4 bytes
+			offset = start+((offset-start)/4+1)*4;
+		}
+	}
+
+	private void parseBye(byte[] buffer, int offset, int count) {
+		for (int i=0;i<count;i++,offset+=4) {
+			int ssrc = getInt(buffer, offset, 4);
+			mReports.remove(ssrc);
+			mCnames.remove(ssrc);
+			Listener listener = mListener;
+			if (listener != null) listener.onBye(ssrc);
+		}
+	}
+
+	private void parseTransportFeedback(byte[] buffer, int offset, int fmt, int length) {
+		Listener listener = mListener;
+		if (fmt != FMT_NACK || listener == null) return;
+		int sender = getInt(buffer, offset+4, 4), media = getInt(buffer, offset+8, 4);
+		// Each FCI entry is a packet id and a bitmask of the 16 following lost packets
+		int entries = (length-12)/4, lost = 0;
+		for (int i=0;i<entries;i++) {
+			lost += 1+Integer.bitCount(getInt(buffer, offset+14+4*i, 2));
+		}
+		int[] seqs = new int[lost];
+		for (int i=0,k=0;i<entries;i++) {
+			int pid = getInt(buffer, offset+12+4*i, 2), blp = getInt(buffer, offset+14+4*i, 2);
+			seqs[k++] = pid;
+			for (int j=0;j<16;j++) {
+				if ((blp&(1<<j)) != 0) seqs[k++] = (pid+j+1)&0xFFFF;
+			}
+		}
+		listener.onNack(sender, media, seqs);
+	}
+
+	private void parsePayloadFeedback(byte[] buffer, int offset, int fmt, int length) {
+		Listener listener = mListener;
+		if (listener == null) return;
+		int sender = getInt(buffer, offset+4, 4), media = getInt(buffer, offset+8, 4);
+		switch (fmt) {
+		case FMT_PLI:
+			listener.onPictureLoss(sender, media);
+			break;
+		case FMT_FIR:
+			// The media SSRC is not used, each FCI entry is the SSRC of a stream and a sequence number
+			for (int i=12;i+8<=length;i+=8) {
+				listener.onFullIntraRequest(sender, getInt(buffer, offset+i, 4));
+			}
+			break;
+		case FMT_AFB:
+			if (length >= 20 && buffer[offset+12] == 'R' && buffer[offset+13] == 'E' && buffer[offset+14] == 'M' && buffer[offset+15] == 'B') {
+				int count = buffer[offset+16]&0xFF;
+				int exp = (buffer[offset+17]&0xFF)>>2;
+				long mantissa = getInt(buffer, offset+17, 3)&0x3FFFF;
+				int[] ssrcs = new int[Math.min(count, (length-20)/4)];
+				for (int i=0;i<ssrcs.length;i++) {
+					ssrcs[i] = getInt(buffer, offset+20+4*i, 4);
+				}
+				listener.onRemb(sender, exp < 40 ? mantissa<<exp : Long.MAX_VALUE, ssrcs);
+			}
+			break;
+		}
+	}
+
+	private static int getInt(byte[] buffer, int begin, int length) {
+		int n = 0;
+		for (int i=begin;i<begin+length;i++) {
+			n = (n<<8) | (buffer[i]&0xFF);
+		}
+		return n;
+	}
+
+}
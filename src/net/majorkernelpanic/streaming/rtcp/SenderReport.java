@@ -18,19 +18,18 @@
 
 package net.majorkernelpanic.streaming.rtcp;
 
-import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_TCP;
-import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_UDP;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.nio.channels.IllegalSelectorException;
-import android.os.SystemClock;
-import android.util.Log;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.rtp.InterleavedTransport;
+import net.majorkernelpanic.streaming.rtp.PacketTransport;
+import net.majorkernelpanic.streaming.rtp.UdpTransport;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * Reports are sent over UDP, or with the {@link PacketTransport} of the RTP stream.
+ * The UDP socket is only opened when a UDP destination is set, or when its port is needed.
  */
 public class SenderReport {
 
@@ -38,16 +37,15 @@ public class SenderReport {
 
 	private static final int PACKET_LENGTH = 28;
 	
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private UdpTransport mUdp;
+	private PacketTransport mTransport;
+	private RtcpReceiver mReceiver = new RtcpReceiver();
 
-	private int mTransport;
-	private OutputStream mOutputStream = null;
 	private byte[] mBuffer = new byte[MTU];
-	private int mSSRC, mPort = -1;
+	private ByteBuffer mPacket = ByteBuffer.wrap(mBuffer);
+	private int mSSRC;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
-	private byte mTcpHeader[];
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -55,9 +53,6 @@ public class SenderReport {
 	}
 	
 	public SenderReport() {
-
-		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
 		
 		/*							     Version(2)  Padding(0)					 					*/
 		/*									 ^		  ^			PT = 0	    						*/
@@ -81,21 +76,14 @@ public class SenderReport {
 		/* Byte 20,21,22,23  ->  packet count				 	 */
 		/* Byte 24,25,26,27  ->  octet count			         */
 
-		try {
-			usock = new MulticastSocket();
-		} catch (IOException e) {
-			// Very unlikely to happen. Means that all UDP ports are already being used
-			throw new RuntimeException(e.getMessage());
-		}
-		upack = new DatagramPacket(mBuffer, 1);
-
 		// By default we sent one report every 3 secconde
 		interval = 3000;
 		
 	}
 
-	public void close() {
-		usock.close();
+	/** Closes the socket, the {@link RtcpReceiver} listening to it stops. */
+	public synchronized void close() {
+		if (mUdp != null) mUdp.close();
 	}
 
 	/**
@@ -121,7 +109,7 @@ public class SenderReport {
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
 
-		now = SystemClock.elapsedRealtime();
+		now = System.nanoTime()/1000000;
 		delta += oldnow != 0 ? now-oldnow : 0;
 		oldnow = now;
 		if (interval>0 && delta>=interval) {
@@ -142,10 +130,16 @@ public class SenderReport {
 	}
 
 	public void setDestination(InetAddress dest, int dport) {
-		mTransport = TRANSPORT_UDP;
-		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mTransport = udp();
+		mUdp.setDestination(dest, dport);
+		// Receivers send their reports back to the port the sender reports come from
+		mReceiver.listen(mUdp.getSocket());
+	}
+
+	/** The UDP socket is only opened when it is needed. */
+	private synchronized UdpTransport udp() {
+		if (mUdp == null) mUdp = new UdpTransport();
+		return mUdp;
 	}
 
 	/**
@@ -154,23 +148,31 @@ public class SenderReport {
 	 * be specified with this method.
 	 */ 
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
-		mTransport = TRANSPORT_TCP;
-		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mTransport = new InterleavedTransport(os, channelIdentifier);
 	}	
+
+	/** Sends the reports with another transport, see {@link net.majorkernelpanic.streaming.rtp.RtpSocket#setTransport(PacketTransport)}. */
+	public void setTransport(PacketTransport transport) {
+		mTransport = transport;
+	}
 	
 	public int getPort() {
-		return mPort;
+		return udp().getPort();
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return udp().getLocalPort();
 	}
 
 	public int getSSRC() {
 		return mSSRC;
 	}
 
+	/** Returns the {@link RtcpReceiver} that parses the RTCP packets sent back by the receivers. */
+	public RtcpReceiver getReceiver() {
+		return mReceiver;
+	}
+
 	/**
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
@@ -203,16 +205,14 @@ public class SenderReport {
 		setLong(hb, 8, 12);
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
-		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
-		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
-			}
+		mPacket.clear();
+		mPacket.limit(PACKET_LENGTH);
+		// No destination yet
+		if (mTransport == null) return;
+		try {
+			mTransport.send(mPacket, true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 		
@@ -21,7 +21,6 @@ package net.majorkernelpanic.streaming.rtp;
 import java.io.IOException;
 import net.majorkernelpanic.streaming.audio.AACStream;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  *   
@@ -29,14 +28,17 @@ import android.util.Log;
  *
  *   This packetizer must be fed with an InputStream containing ADTS AAC. 
  *   AAC will basically be rewrapped in an RTP stream and sent over the network.
- *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- *   each packet only carry a single and complete AAC access unit.
+ *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC),
+ *   packets carry complete AAC access units, or a fragment of one if it is too big.
  * 
  */
-public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
+public class AACADTSPacketizer extends AbstractAACPacketizer implements Runnable {
 
 	private final static String TAG = "AACADTSPacketizer";
 
+	/** ADTS frames start with 12 bits set to 1. */
+	private final static byte[] SYNC_WORD = new byte[] {(byte) 0xFF, (byte) 0xF0};
+
 	private Thread t;
 	private int samplingRate = 8000;
 
@@ -89,15 +91,10 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 			while (!Thread.interrupted()) {
 
 				// Synchronisation: ADTS packet starts with 12bits set to 1
-				while (true) {
-					if ( (is.read()&0xFF) == 0xFF ) {
-						header[1] = (byte) is.read();
-						if ( (header[1]&0xF0) == 0xF0) break;
-					}
-				}
+				source.skipTo(SYNC_WORD, SYNC_WORD);
 
 				// Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-				fill(header, 2, 5);
+				source.readFully(header, 0, 7);
 
 				// The protection bit indicates whether or not the header contains the two extra bytes
 				protection = (header[1]&0x01)>0 ? true : false;
@@ -113,16 +110,26 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				nbpk = frameLength/MAXPACKETSIZE + 1;
 
 				// Read CRS if any
-				if (!protection) is.read(header,0,2);
+				if (!protection) source.skipBytes(2);
 
 				samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
 				// We update the RTP timestamp
-				ts +=  1024L*1000000000L/samplingRate; //stats.average();
+				ts = socket.getMediaClock().advance(ts, 1024);
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+				// Small AU => Aggregated with the next ones, depending on the max ptime
+				if (frameLength <= getMaxAULength()) {
+					int offset = beginAU(frameLength);
+					source.readFully(buffer, offset, frameLength);
+					endAU(frameLength);
+					continue;
+				}
+
+				// Large AU => Fragmented
+				flush();
 				sum = 0;
 				while (sum<frameLength) {
 
@@ -138,7 +145,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 						socket.markNextPacket();
 					}
 					sum += length;
-					fill(buffer, rtphl+4, length);
+					source.readFully(buffer, rtphl+4, length);
 
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
@@ -170,16 +177,4 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
-		return sum;
-	}
-
 }
@@ -19,10 +19,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.media.MediaCodec.BufferInfo;
-import android.os.SystemClock;
-import android.util.Log;
+import java.nio.ByteBuffer;
 
 /**
  * RFC 3640.  
@@ -30,15 +27,22 @@ import android.util.Log;
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
  * This packetizer is used by the AACStream class in conjunction with the 
  * MediaCodec API introduced in Android 4.1 (API Level 16).       
+ * Must be fed with an {@link EncodedFrameSource}, AUs are packetized straight from the buffers of the encoder.
+ * 
+ * When the silences are suppressed, the stream tells the packetizer where the talkspurts begin and end
+ * (see {@link #startTalkspurt(long)}): the packet being built is sent right after the last AU of a talkspurt,
+ * and the AUs that the encoder outputs outside of the talkspurts are dropped.
  * 
  */
-@SuppressLint("NewApi")
-public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
+public class AACLATMPacketizer extends AbstractAACPacketizer implements Runnable {
 
 	private final static String TAG = "AACLATMPacketizer";
 
 	private Thread t;
 
+	/** Presentation times of the first and last AUs of the current and of the previous talkspurts, in us. */
+	private long mStart = 0, mEnd = Long.MAX_VALUE, mPreviousStart = 0, mPreviousEnd = -1;
+
 	public AACLATMPacketizer() {
 		super();
 		socket.setCacheSize(0);
@@ -68,65 +72,140 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
-	@SuppressLint("NewApi")
+	/** 
+	 * Waits for the thread of the packetizer to end by itself, when the encoder signals the end of the stream.
+	 * @param timeout The maximum time to wait in ms
+	 */
+	public void awaitEndOfStream(long timeout) {
+		Thread thread = t;
+		if (thread != null) {
+			try {
+				thread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Every AU is sent, until {@link #endTalkspurt(long)} is called. */
+	public synchronized void resetTalkspurts() {
+		mStart = mPreviousStart = 0;
+		mEnd = Long.MAX_VALUE;
+		mPreviousEnd = -1;
+	}
+
+	/** 
+	 * A talkspurt begins with the AU of this presentation time.
+	 * The AUs of the previous talkspurt that the encoder did not output yet will still be sent.
+	 */
+	public synchronized void startTalkspurt(long presentationTimeUs) {
+		mPreviousStart = mStart;
+		mPreviousEnd = mEnd;
+		mStart = presentationTimeUs;
+		mEnd = Long.MAX_VALUE;
+	}
+
+	/** The current talkspurt ends with the AU of this presentation time. */
+	public synchronized void endTalkspurt(long presentationTimeUs) {
+		mEnd = presentationTimeUs;
+	}
+
+	private synchronized boolean isInTalkspurt(long presentationTimeUs) {
+		return (presentationTimeUs >= mStart && presentationTimeUs <= mEnd) || 
+				(presentationTimeUs >= mPreviousStart && presentationTimeUs <= mPreviousEnd);
+	}
+
+	private synchronized boolean isEndOfTalkspurt(long presentationTimeUs) {
+		return presentationTimeUs == mEnd || presentationTimeUs == mPreviousEnd;
+	}
+
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
-		int length = 0;
-		long oldts;
-		BufferInfo bufferInfo;
+		EncodedFrameSource source = (EncodedFrameSource) is;
+		EncodedFrameSource.Frame frame;
+		MediaClock clock = socket.getMediaClock();
+		long oldts, rtpts, nextts = -1;
 
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
+				frame = source.readFrame();
+				try {
+					// The AudioSpecificConfig is sent in the SDP
+					if (frame.isCodecConfig() || !frame.data.hasRemaining()) continue;
+
+					// Frames fed to the encoder after a talkspurt to get its last AUs out
+					if (!isInTalkspurt(frame.presentationTimeUs)) continue;
+
 					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
+					rtpts = clock.toRtp(frame.presentationTimeUs*1000);
+
+					// Consecutive AUs are exactly one frame apart, the jitter of the presentation
+					// times is dropped unless they jump by more than half a frame
+					if (nextts >= 0 && Math.abs(rtpts-nextts) <= mFrameLength/2) rtpts = nextts;
+					nextts = rtpts+mFrameLength;
+					ts = clock.toNanos(rtpts);
+
 					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+					if (oldts>ts) continue;
+
+					send(frame.data);
+
+					// The rest of the packet would only be sent with the next talkspurt
+					if (isEndOfTalkspurt(frame.presentationTimeUs)) flush();
+				} finally {
+					frame.release();
+				}
 			}
 		} catch (IOException e) {
-		} catch (ArrayIndexOutOfBoundsException e) {
-			Log.e(TAG,"ArrayIndexOutOfBoundsException: "+(e.getMessage()!=null?e.getMessage():"unknown error"));
-			e.printStackTrace();
 		} catch (InterruptedException ignore) {}
 
+		// The last AUs of the stream
+		try {
+			flush();
+		} catch (IOException ignore) {}
+
 		Log.d(TAG,"AAC LATM packetizer stopped !");
 
 	}
 
+	/** 
+	 * Sends an AU, straight from the buffer of the encoder. It may be aggregated with the next ones, see {@link #setMaxPtime(int)}. 
+	 * An AU that does not fit in a packet is fragmented, the marker bit is set on the last fragment (RFC 3640, 3.2.3).
+	 */
+	private void send(ByteBuffer au) throws IOException, InterruptedException {
+		int length = au.remaining();
+		if (length <= getMaxAULength()) {
+			int offset = beginAU(length);
+			au.get(buffer, offset, length);
+			endAU(length);
+			return;
+		}
+		flush();
+		while (au.hasRemaining()) {
+			int len = Math.min(au.remaining(), MAXPACKETSIZE-(rtphl+4));
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+
+			// AU-headers-length field: contains the size in bits of a AU-header
+			// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
+			// 13 bits will be enough because ADTS uses 13 bits for frame length
+			buffer[rtphl] = 0;
+			buffer[rtphl+1] = 0x10; 
+
+			// AU-size, the size of the whole AU even in a fragment
+			buffer[rtphl+2] = (byte) (length>>5);
+			buffer[rtphl+3] = (byte) (length<<3);
+
+			// AU-Index
+			buffer[rtphl+3] &= 0xF8;
+			buffer[rtphl+3] |= 0x00;
+
+			au.get(buffer, rtphl+4, len);
+			if (!au.hasRemaining()) socket.markNextPacket();
+			send(rtphl+len+4);
+		}
+	}
+
 }
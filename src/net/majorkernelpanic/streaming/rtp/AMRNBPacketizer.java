@@ -19,7 +19,6 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.util.Log;
 
 /**
  * 
@@ -30,6 +29,10 @@ import android.util.Log;
  *   Must be fed with an InputStream containing raw AMR NB
  *   Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
  *   
+ *   Packets are octet-aligned: a CMR byte, a table of contents with one entry per frame
+ *   (the F bit of an entry is set when another frame follows), and the frames.
+ *   Each packet carries {@link #setPtime(int) ptime}/20 frames of 20 ms.
+ *   
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
@@ -37,8 +40,12 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final int AMR_HEADER_LENGTH = 6; // "#!AMR\n"
 	private static final int AMR_FRAME_HEADER_LENGTH = 1; // Each frame has a short header
-	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
+	/** Size of the frames in bits for each frame type, SID frames and NO_DATA included (RFC 3267, 3.6). */
+	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244, 39, 43, 38, 37, 0, 0, 0, 0};
+	/** Maximum number of frames in a packet. */
+	public static final int MAX_FRAMES_PER_PACKET = 12;
 	private int samplingRate = 8000;
+	private int mFramesPerPacket = 1;
 
 	private Thread t;
 
@@ -47,6 +54,18 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets the duration of the audio carried by each packet, a multiple of 20 ms.
+	 * 20 ms by default, one frame per packet. Takes effect the next time the packetizer is started.
+	 */
+	public void setPtime(int ptime) {
+		mFramesPerPacket = Math.max(1, Math.min(ptime/20, MAX_FRAMES_PER_PACKET));
+	}
+
+	public int getPtime() {
+		return mFramesPerPacket*20;
+	}
+
 	public void start() {
 		if (t==null) {
 			t = new Thread(this);
@@ -70,45 +89,56 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 	public void run() {
 
 		int frameLength, frameType;
-		long now = System.nanoTime(), oldtime = now;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
 
 		try {
 
 			// Skip raw AMR header
-			fill(header,0,AMR_HEADER_LENGTH);
+			source.readFully(header,0,AMR_HEADER_LENGTH);
 			
 			if (header[5] != '\n') {
 				Log.e(TAG,"Bad header ! AMR not correcty supported by the phone !");
 				return;
 			}
 
+			int frames = mFramesPerPacket;
 			while (!Thread.interrupted()) {
 
 				buffer = socket.requestBuffer();
+				// CMR: no mode request
 				buffer[rtphl] = (byte) 0xF0;
-				
-				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
 
-				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+				int offset = rtphl+1+frames;
+				long packetTs = 0;
+				for (int i=0;i<frames;i++) {
+
+					// The header of the frame in the file is its entry in the table of contents
+					source.readFully(buffer, rtphl+1+i, AMR_FRAME_HEADER_LENGTH);
+					if (i<frames-1) buffer[rtphl+1+i] |= 0x80;
+					else buffer[rtphl+1+i] &= 0x7F;
+
+					// Then we calculate the frame payload length
+					frameType = (buffer[rtphl+1+i] >> 3) & 0x0F;
+					frameLength = (sFrameBits[frameType]+7)/8;
 
-				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+					// And we read the payload
+					source.readFully(buffer, offset, frameLength);
+					offset += frameLength;
 
-				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+					//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
 
-				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
-				socket.updateTimestamp(ts);
+					// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
+					// FIXME: Is this really always the case ??
+					ts = socket.getMediaClock().advance(ts, 160);
+					if (i == 0) packetTs = ts;
+
+				}
+
+				// The timestamp of the packet is the timestamp of its first frame
+				socket.updateTimestamp(packetTs);
 				socket.markNextPacket();
 
-				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
-				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
+				send(offset);
 				
 			}
 
@@ -119,17 +149,5 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
-		return sum;
-	}
-
 
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ * RFC 3640, AAC-hbr mode.
+ *
+ * Packs consecutive AAC access units in RTP packets. Each packet starts with the AU-headers-length,
+ * followed by one 16 bits AU-header per AU (13 bits for the AU-size and 3 bits for the AU-Index / AU-Index-delta),
+ * followed by the AUs.
+ * By default, each packet carries a single AU. With {@link #setMaxPtime(int)}, AUs are
+ * gathered until the packet holds that much audio or is full.
+ * AUs that do not fit in a packet are fragmented by the subclasses.
+ */
+public abstract class AbstractAACPacketizer extends AbstractPacketizer {
+
+	/** Maximum number of AUs in a packet. */
+	public final static int MAX_AU_COUNT = 16;
+
+	/** Number of samples in an AU. */
+	protected int mFrameLength = 1024;
+
+	private int mMaxPtime = 0;
+	private int[] mSizes = new int[MAX_AU_COUNT];
+	private int mCount = 0, mReserved = 0, mLength = 0;
+	private long mPacketTs = 0;
+
+	/**
+	 * Sets the maximum duration of the audio carried by a packet in ms.
+	 * 0, the default value, means one AU per packet.
+	 */
+	public void setMaxPtime(int maxPtime) {
+		mMaxPtime = maxPtime;
+	}
+
+	public int getMaxPtime() {
+		return mMaxPtime;
+	}
+
+	/** Sets the number of samples in an AU: 1024 for AAC-LC, 480 or 512 for AAC-LD and AAC-ELD. */
+	public void setFrameLength(int frameLength) {
+		mFrameLength = frameLength;
+	}
+
+	public int getFrameLength() {
+		return mFrameLength;
+	}
+
+	/** Returns the maximum length of an AU that can be sent in a packet without being fragmented. */
+	protected static int getMaxAULength() {
+		return MAXPACKETSIZE-rtphl-4;
+	}
+
+	/**
+	 * Makes room for an AU in the packet being built, sends the packet first if needed.
+	 * The AU must not be longer than {@link #getMaxAULength()}, and ts must be its timestamp.
+	 * @return The offset in the buffer where the AU must be written
+	 */
+	protected int beginAU(int length) throws IOException, InterruptedException {
+		if (mCount > 0) {
+			// The timestamp of the AUs that follow the first one is deduced from their index
+			long gap = socket.getMediaClock().toRtp(ts) - socket.getMediaClock().toRtp(mPacketTs) - (long) mFrameLength*mCount;
+			if (rtphl+2+2*mReserved+mLength+length > MAXPACKETSIZE || Math.abs(gap) > mFrameLength/2) {
+				flush();
+			}
+		}
+		if (mCount == 0) {
+			buffer = socket.requestBuffer();
+			long rate = socket.getMediaClock().getRate();
+			int count = rate > 0 ? (int) (mMaxPtime*rate/(1000L*mFrameLength)) : 1;
+			mReserved = Math.max(1, Math.min(count, MAX_AU_COUNT));
+			mPacketTs = ts;
+			mLength = 0;
+		}
+		return rtphl+2+2*mReserved+mLength;
+	}
+
+	/** The AU has been written, the packet is sent if it is full. */
+	protected void endAU(int length) throws IOException {
+		mSizes[mCount++] = length;
+		mLength += length;
+		if (mCount == mReserved) flush();
+	}
+
+	/** Sends the packet being built, if any. */
+	protected void flush() throws IOException {
+		if (mCount == 0) return;
+		int data = rtphl+2+2*mCount;
+		// Less AUs than expected, the AUs are moved next to their headers
+		if (mCount < mReserved) System.arraycopy(buffer, rtphl+2+2*mReserved, buffer, data, mLength);
+
+		// AU-headers-length field: contains the size in bits of the AU-headers
+		buffer[rtphl] = (byte) ((16*mCount)>>8);
+		buffer[rtphl+1] = (byte) (16*mCount);
+
+		for (int i=0;i<mCount;i++) {
+			// AU-size, and AU-Index (first AU) or AU-Index-delta (next ones) set to 0
+			buffer[rtphl+2+2*i] = (byte) (mSizes[i]>>5);
+			buffer[rtphl+3+2*i] = (byte) ((mSizes[i]<<3)&0xF8);
+		}
+
+		mCount = 0;
+		socket.updateTimestamp(mPacketTs);
+		socket.markNextPacket();
+		send(data+mLength);
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the start codes (0x000001) that separate NAL units in a byte stream (Annex B of ITU-T H.264 and H.265).
+ * Every start code begins with a zero byte, so the buffer is read 8 bytes at a time and only words
+ * containing a zero byte are looked at more closely. The buffer is read with absolute gets,
+ * its position and limit are not modified and nothing is copied.
+ */
+final class AnnexBScanner {
+
+	private final static long ONES = 0x0101010101010101L;
+	private final static long HIGHS = 0x8080808080808080L;
+
+	private AnnexBScanner() {}
+
+	/**
+	 * Returns the index of the next start code 0x000001 in the buffer between from and to,
+	 * or -1 if there is none. When the start code is preceded by a zero byte (0x00000001),
+	 * the index of the 0x000001 part is returned.
+	 */
+	public static int find(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		while (i+8 <= to) {
+			long word = buffer.getLong(i);
+			if (((word - ONES) & ~word & HIGHS) == 0) {
+				// No zero byte in the word, no start code can begin in it
+				i += 8;
+				continue;
+			}
+			for (int end = i+8; i < end; i++) {
+				if (buffer.get(i) == 0 && i+2 < to && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) return i;
+			}
+		}
+		for (; i+2 < to; i++) {
+			if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) return i;
+		}
+		return -1;
+	}
+
+}
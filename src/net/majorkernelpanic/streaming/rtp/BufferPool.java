@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A process-wide pool of packet buffers shared by every {@link RtpSocket}.
+ * Buffers are {@link RtpSocket#MTU} bytes long and are allocated by slabs of
+ * {@link #SLAB_SIZE} buffers, only when the sockets need them. A socket borrows a
+ * buffer when a packetizer requests one and gives it back once the packet is sent.
+ * The total amount of memory allocated by the pool can not exceed its memory cap,
+ * when it is reached, {@link #acquire()} waits until a buffer is released.
+ * The free buffers are freed when the last socket using the pool is closed.
+ */
+public class BufferPool {
+
+	public final static String TAG = "BufferPool";
+
+	/** Number of buffers allocated at once when the pool grows. */
+	public final static int SLAB_SIZE = 32;
+
+	/** Default memory cap of the pool: 4 MB. */
+	public final static long DEFAULT_MEMORY_CAP = 4*1024*1024;
+
+	private static volatile BufferPool sInstance = null;
+
+	private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<ByteBuffer>();
+	private final int mBufferSize;
+
+	private long mMemoryCap = DEFAULT_MEMORY_CAP;
+	private boolean mDirect = false;
+	private int mAllocated = 0, mInUse = 0, mHighWaterMark = 0, mWaits = 0, mSockets = 0;
+
+	/**
+	 * Returns a reference to the {@link BufferPool}.
+	 * @return The reference to the {@link BufferPool}
+	 */
+	public static BufferPool getInstance() {
+		if (sInstance == null) {
+			synchronized (BufferPool.class) {
+				if (sInstance == null) {
+					BufferPool.sInstance = new BufferPool(RtpSocket.MTU);
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	BufferPool(int bufferSize) {
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * Buffers allocated from now on will be direct buffers.
+	 * On Android, a direct buffer is backed by an array that does not move, so packets can be
+	 * written to a {@link java.nio.channels.DatagramChannel} without being copied first.
+	 * Buffers already in the pool are not reallocated.
+	 */
+	public synchronized void setDirect(boolean direct) {
+		mDirect = direct;
+	}
+
+	/** Sets the maximum amount of memory in bytes the pool can allocate. */
+	public synchronized void setMemoryCap(long cap) {
+		mMemoryCap = cap;
+		notifyAll();
+	}
+
+	public synchronized long getMemoryCap() {
+		return mMemoryCap;
+	}
+
+	/** Returns the length in bytes of the buffers. */
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/** Returns the number of buffers allocated by the pool. */
+	public synchronized int getAllocatedCount() {
+		return mAllocated;
+	}
+
+	/** Returns the number of buffers currently borrowed by the sockets. */
+	public synchronized int getInUseCount() {
+		return mInUse;
+	}
+
+	/** Returns the highest number of buffers that were borrowed at the same time. */
+	public synchronized int getHighWaterMark() {
+		return mHighWaterMark;
+	}
+
+	/** Returns the number of times a socket had to wait because the memory cap was reached. */
+	public synchronized int getWaitCount() {
+		return mWaits;
+	}
+
+	/** Returns the ratio of borrowed buffers to allocated buffers. */
+	public synchronized float getOccupancy() {
+		return mAllocated > 0 ? (float)mInUse/mAllocated : 0;
+	}
+
+	/**
+	 * Borrows a buffer from the pool, its position is 0 and its limit its capacity.
+	 * Waits if no buffer is free and the memory cap is reached.
+	 */
+	public synchronized ByteBuffer acquire() throws InterruptedException {
+		if (mFree.isEmpty()) {
+			if (!grow()) {
+				mWaits++;
+				while (mFree.isEmpty() && !grow()) {
+					wait();
+				}
+			}
+		}
+		ByteBuffer buffer = mFree.poll();
+		buffer.clear();
+		if (++mInUse > mHighWaterMark) mHighWaterMark = mInUse;
+		return buffer;
+	}
+
+	/** Gives a buffer obtained with {@link #acquire()} back to the pool. */
+	public synchronized void release(ByteBuffer buffer) {
+		mFree.push(buffer);
+		mInUse--;
+		notify();
+	}
+
+	/** Called when a socket starts using the pool. */
+	synchronized void attach() {
+		mSockets++;
+	}
+
+	/** Called when a socket is closed, the pool is trimmed once no socket uses it anymore. */
+	synchronized void detach() {
+		if (--mSockets <= 0) {
+			mSockets = 0;
+			trim();
+		}
+	}
+
+	/** Frees the buffers that are not borrowed, they will be allocated again if needed. */
+	public synchronized void trim() {
+		mAllocated -= mFree.size();
+		mFree.clear();
+		Log.d(TAG, "Trimmed, "+this);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mInUse+"/"+mAllocated+" buffers in use ("+(mAllocated*mBufferSize/1024)+" KB, cap "
+				+(mMemoryCap/1024)+" KB), high-water mark: "+mHighWaterMark+", waits: "+mWaits;
+	}
+
+	/** Allocates a new slab if the memory cap allows it. */
+	private boolean grow() {
+		int count = (int) Math.min(SLAB_SIZE, mMemoryCap/mBufferSize - mAllocated);
+		if (count <= 0) return false;
+		for (int i=0;i<count;i++) {
+			mFree.push(allocate());
+		}
+		mAllocated += count;
+		return true;
+	}
+
+	private ByteBuffer allocate() {
+		if (mDirect) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(mBufferSize);
+			// Packetizers write in the array of the buffer, it must start at offset 0
+			if (buffer.hasArray() && buffer.arrayOffset() == 0) return buffer;
+			Log.e(TAG, "Direct buffers are not backed by an accessible array, heap buffers will be used");
+			mDirect = false;
+		}
+		return ByteBuffer.wrap(new byte[mBufferSize]);
+	}
+
+}
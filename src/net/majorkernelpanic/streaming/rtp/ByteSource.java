@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered InputStream over the pipe between the MediaRecorder and a packetizer
+ * (a LocalSocket or a ParcelFileDescriptor).
+ * Each call to the pipe reads as much data as is available, and the packetizers
+ * look ahead in it with {@link #peek(int)}, skip it with {@link #skipBytes(int)}, and
+ * search it with {@link #skipTo(byte[], byte[])} and {@link #readUntil(byte[], int, int, byte[], byte[])}
+ * without reading it byte by byte.
+ * Unlike the InputStream methods, those methods throw an {@link EOFException} at the end of the stream.
+ * This class is not thread safe !
+ */
+public class ByteSource extends InputStream {
+
+	public final static int DEFAULT_BUFFER_SIZE = 64*1024;
+
+	private final InputStream mInputStream;
+	private final byte[] mBuffer;
+	private int mPosition = 0, mLimit = 0;
+
+	public ByteSource(InputStream inputStream) {
+		this(inputStream, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param inputStream The stream to read
+	 * @param size The size of the buffer, which is also the maximum distance at which {@link #peek(int)} can look
+	 */
+	public ByteSource(InputStream inputStream, int size) {
+		mInputStream = inputStream;
+		mBuffer = new byte[size];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mPosition == mLimit && refill() < 0) return -1;
+		return mBuffer[mPosition++]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (mPosition == mLimit) {
+			// Large reads bypass the buffer
+			if (length >= mBuffer.length) return mInputStream.read(buffer, offset, length);
+			if (refill() < 0) return -1;
+		}
+		int len = Math.min(length, mLimit-mPosition);
+		System.arraycopy(mBuffer, mPosition, buffer, offset, len);
+		mPosition += len;
+		return len;
+	}
+
+	/** Reads exactly length bytes. */
+	public void readFully(byte[] buffer, int offset, int length) throws IOException {
+		int len = Math.min(length, mLimit-mPosition);
+		System.arraycopy(mBuffer, mPosition, buffer, offset, len);
+		mPosition += len;
+		while (len < length) {
+			int n = read(buffer, offset+len, length-len);
+			if (n < 0) throw new EOFException();
+			len += n;
+		}
+	}
+
+	/** Returns the byte that comes index bytes after the current position, without consuming anything. */
+	public int peek(int index) throws IOException {
+		require(index+1);
+		return mBuffer[mPosition+index]&0xFF;
+	}
+
+	/** Discards exactly n bytes. */
+	public void skipBytes(int n) throws IOException {
+		while (n > 0) {
+			if (mPosition == mLimit && refill() < 0) throw new EOFException();
+			int len = Math.min(n, mLimit-mPosition);
+			mPosition += len;
+			n -= len;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long len = Math.min(n, mLimit-mPosition);
+		mPosition += len;
+		return len < n ? len + mInputStream.skip(n-len) : len;
+	}
+
+	/** Discards the bytes preceding the next occurrence of the pattern, see {@link #skipTo(byte[], byte[])}. */
+	public long skipTo(byte[] pattern) throws IOException {
+		return skipTo(pattern, null);
+	}
+
+	/**
+	 * Discards the bytes preceding the next occurrence of the pattern,
+	 * the next bytes read are the pattern.
+	 * @param pattern The bytes to look for
+	 * @param mask Only the bits set in the mask are compared, may be null
+	 * @return The number of bytes discarded
+	 */
+	public long skipTo(byte[] pattern, byte[] mask) throws IOException {
+		final int n = pattern.length;
+		long skipped = 0;
+		while (true) {
+			require(n);
+			int last = mLimit-n;
+			int i = find(mPosition, last, pattern, mask);
+			if (i >= 0) {
+				skipped += i-mPosition;
+				mPosition = i;
+				return skipped;
+			}
+			// The last n-1 bytes may be the beginning of the pattern, they are kept
+			skipped += last+1-mPosition;
+			mPosition = last+1;
+		}
+	}
+
+	/**
+	 * Reads up to length bytes, and stops before the next occurrence of the pattern.
+	 * @param mask Only the bits set in the mask are compared, may be null
+	 * @return The number of bytes read. When it is less than length, the next bytes are the pattern,
+	 * 	or the end of the stream was reached.
+	 */
+	public int readUntil(byte[] buffer, int offset, int length, byte[] pattern, byte[] mask) throws IOException {
+		final int n = pattern.length;
+		int sum = 0;
+		while (sum < length) {
+			while (mLimit-mPosition < n) {
+				if (refill() < 0) {
+					// End of the stream, what is left is too short to contain the pattern
+					int len = Math.min(mLimit-mPosition, length-sum);
+					if (len == 0 && sum == 0) throw new EOFException();
+					System.arraycopy(mBuffer, mPosition, buffer, offset+sum, len);
+					mPosition += len;
+					return sum+len;
+				}
+			}
+			int last = Math.min(mLimit-n, mPosition+length-sum-1);
+			int i = find(mPosition, last, pattern, mask);
+			int end = i >= 0 ? i : last+1;
+			System.arraycopy(mBuffer, mPosition, buffer, offset+sum, end-mPosition);
+			sum += end-mPosition;
+			mPosition = end;
+			if (i >= 0) break;
+		}
+		return sum;
+	}
+
+	/** Returns true if the next bytes are the pattern, without consuming anything. */
+	public boolean startsWith(byte[] pattern, byte[] mask) throws IOException {
+		require(pattern.length);
+		return find(mPosition, mPosition, pattern, mask) == mPosition;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mLimit-mPosition + mInputStream.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mInputStream.close();
+	}
+
+	/** 
+	 * Returns the index in the buffer of the first occurrence of the pattern that begins 
+	 * between first and last, or -1. The pattern must end before mLimit.
+	 */
+	private int find(int first, int last, byte[] pattern, byte[] mask) {
+		final byte[] b = mBuffer;
+		final int n = pattern.length;
+		if (n >= 2 && pattern[0] == 0 && pattern[1] == 0 && (mask == null || (mask[0] == (byte) 0xFF && mask[1] == (byte) 0xFF))) {
+			// Start codes: an occurrence at i or at i+1 needs b[i+1] to be 0, 
+			// so one byte out of two is enough to rule out most positions
+			for (int i=first;i<=last;i+=2) {
+				if (b[i+1] != 0) continue;
+				if (matches(i, pattern, mask)) return i;
+				if (i+1 <= last && matches(i+1, pattern, mask)) return i+1;
+			}
+			return -1;
+		}
+		final int head = pattern[0], headMask = mask != null ? mask[0] : 0xFF;
+		for (int i=first;i<=last;i++) {
+			if ((b[i]&headMask) == (head&headMask) && matches(i, pattern, mask)) return i;
+		}
+		return -1;
+	}
+
+	private boolean matches(int i, byte[] pattern, byte[] mask) {
+		final byte[] b = mBuffer;
+		if (mask == null) {
+			for (int j=0;j<pattern.length;j++) {
+				if (b[i+j] != pattern[j]) return false;
+			}
+		} else {
+			for (int j=0;j<pattern.length;j++) {
+				if ((b[i+j]&mask[j]) != (pattern[j]&mask[j])) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Blocks until at least n bytes are buffered. */
+	private void require(int n) throws IOException {
+		if (mLimit-mPosition >= n) return;
+		if (n > mBuffer.length) throw new IllegalArgumentException("Can not look "+n+" bytes ahead");
+		while (mLimit-mPosition < n) {
+			if (refill() < 0) throw new EOFException();
+		}
+	}
+
+	/** Reads what is available from the stream, after the bytes still buffered. */
+	private int refill() throws IOException {
+		if (mPosition > 0) {
+			System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit-mPosition);
+			mLimit -= mPosition;
+			mPosition = 0;
+		}
+		int len = mInputStream.read(mBuffer, mLimit, mBuffer.length-mLimit);
+		if (len > 0) mLimit += len;
+		return len;
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Hands the frames of an encoder to a packetizer one at a time, without copying them.
+ * A packetizer fed by an EncodedFrameSource reads the payload of the frame straight
+ * from the buffer of the encoder, and gives the frame back with {@link Frame#release()}
+ * once it has been packetized.
+ */
+public interface EncodedFrameSource {
+
+	/** The frame can be decoded on its own. */
+	public final static int FLAG_KEY_FRAME = 0x01;
+
+	/** The frame contains the configuration of the codec (SPS and PPS, AudioSpecificConfig...), not media data. */
+	public final static int FLAG_CODEC_CONFIG = 0x02;
+
+	/**
+	 * Blocks until the encoder outputs a frame.
+	 * Only one frame can be held at a time, it must be released before the next one is read.
+	 * @throws IOException If the source was closed
+	 */
+	public Frame readFrame() throws IOException;
+
+	/** Gives the buffer of the frame back to the encoder. */
+	public void releaseFrame(Frame frame);
+
+	/** A frame output by an encoder. Valid until it is released. */
+	public static class Frame {
+
+		/** Read-only view of the frame, its position and limit delimit the data. */
+		public ByteBuffer data;
+
+		/** Presentation time of the frame in us. */
+		public long presentationTimeUs;
+
+		/** A combination of {@link EncodedFrameSource#FLAG_KEY_FRAME} and {@link EncodedFrameSource#FLAG_CODEC_CONFIG}. */
+		public int flags;
+
+		private final EncodedFrameSource mSource;
+
+		public Frame(EncodedFrameSource source) {
+			mSource = source;
+		}
+
+		public boolean isKeyFrame() {
+			return (flags & FLAG_KEY_FRAME) != 0;
+		}
+
+		public boolean isCodecConfig() {
+			return (flags & FLAG_CODEC_CONFIG) != 0;
+		}
+
+		/** Gives the buffer of the frame back to the encoder. */
+		public void release() {
+			mSource.releaseFrame(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the packets in a capture file, in the rtpdump format of the rtptools
+ * (also read by Wireshark): a text line, a file header, and each packet preceded
+ * by its length and the time at which it was sent in ms.
+ */
+public class FileTransport implements PacketTransport {
+
+	public final static String TAG = "FileTransport";
+
+	private final OutputStream mOutputStream;
+	private final byte[] mHeader = new byte[16];
+	private final long mStart;
+
+	/**
+	 * Creates the capture file.
+	 * @param file The capture file, overwritten if it exists
+	 * @param port The port written in the header of the file, players of rtpdump files send the packets to it
+	 */
+	public FileTransport(File file, int port) throws IOException {
+		mOutputStream = new BufferedOutputStream(new FileOutputStream(file), 64*1024);
+		long now = System.currentTimeMillis();
+		mStart = System.nanoTime();
+		mOutputStream.write(("#!rtpplay1.0 127.0.0.1/"+port+"\n").getBytes("US-ASCII"));
+		// Start of the capture (s and us), source address (4 bytes), port and padding (2 bytes each)
+		setLong(now/1000, 0, 4);
+		setLong((now%1000)*1000, 4, 8);
+		setLong(0x7F000001, 8, 12);
+		setLong(port, 12, 14);
+		setLong(0, 14, 16);
+		mOutputStream.write(mHeader, 0, 16);
+	}
+
+	@Override
+	public synchronized void send(ByteBuffer packet, boolean flush) throws IOException {
+		int length = packet.remaining();
+		// Length of the record, length of the packet and time elapsed since the start of the capture in ms
+		setLong(length+8, 0, 2);
+		setLong(length, 2, 4);
+		setLong((System.nanoTime()-mStart)/1000000, 4, 8);
+		mOutputStream.write(mHeader, 0, 8);
+		mOutputStream.write(packet.array(), packet.arrayOffset()+packet.position(), length);
+	}
+
+	@Override
+	public int getBacklog() {
+		return 0;
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			mOutputStream.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not close the capture file: "+e.getMessage());
+		}
+	}
+
+	private void setLong(long n, int begin, int end) {
+		for (end--; end >= begin; end--) {
+			mHeader[end] = (byte) (n % 256);
+			n >>= 8;
+		}
+	}
+
+}
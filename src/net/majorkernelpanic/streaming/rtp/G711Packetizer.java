@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ *
+ *   RFC 3551.
+ *
+ *   G.711 streaming over RTP, with the static payload types 0 (PCMU, mu-law) and 8 (PCMA, A-law).
+ *
+ *   Must be fed with an InputStream containing 16 bits little endian mono PCM sampled at 8 kHz,
+ *   which is encoded with lookup tables while it is copied in the packets.
+ *   Each packet carries {@link #setPtime(int)} ms of audio, and its timestamp is
+ *   deduced from the number of samples sent before it.
+ *
+ */
+public class G711Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "G711Packetizer";
+
+	/** Payload type of mu-law. */
+	public final static int PCMU = 0;
+
+	/** Payload type of A-law. */
+	public final static int PCMA = 8;
+
+	/** mu-law codes of the 14 most significant bits of the samples. */
+	private final static byte[] ULAW_TABLE = new byte[1<<14];
+
+	/** A-law codes of the 13 most significant bits of the samples. */
+	private final static byte[] ALAW_TABLE = new byte[1<<13];
+
+	/** Upper bounds of the segments, see the G.711 reference implementation of Sun Microsystems. */
+	private final static int[] ULAW_SEGMENTS = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+	private final static int[] ALAW_SEGMENTS = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+	static {
+		for (int i=0;i<ULAW_TABLE.length;i++) {
+			ULAW_TABLE[i] = linearToULaw((i<<18)>>18);
+		}
+		for (int i=0;i<ALAW_TABLE.length;i++) {
+			ALAW_TABLE[i] = linearToALaw((i<<19)>>19);
+		}
+	}
+
+	private Thread t;
+	private int mPayloadType = PCMU;
+	private int mPtime = 20;
+	private byte[] mPcm = new byte[0];
+
+	public G711Packetizer() {
+		super();
+		socket.setClockFrequency(8000);
+		socket.setPayloadType(mPayloadType);
+	}
+
+	public void start() {
+		if (t==null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException ignore) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Sets the law used to encode the samples: {@link #PCMU} (the default) or {@link #PCMA}. */
+	public void setPayloadType(int payloadType) {
+		mPayloadType = payloadType == PCMA ? PCMA : PCMU;
+		socket.setPayloadType(mPayloadType);
+	}
+
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
+	/** Sets the duration of the audio carried by a packet in ms, 20 ms by default. */
+	public void setPtime(int ptime) {
+		mPtime = ptime;
+	}
+
+	public int getPtime() {
+		return mPtime;
+	}
+
+	public void run() {
+		Log.d(TAG,"G711 packetizer started !");
+
+		final int samples = mPtime*8;
+		final boolean ulaw = mPayloadType == PCMU;
+		long rtpts = socket.getMediaClock().toRtp(ts);
+		boolean first = true;
+
+		if (mPcm.length != 2*samples) mPcm = new byte[2*samples];
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				source.readFully(mPcm, 0, 2*samples);
+				buffer = socket.requestBuffer();
+				if (ulaw) encodeULaw(mPcm, 0, buffer, rtphl, samples);
+				else encodeALaw(mPcm, 0, buffer, rtphl, samples);
+				ts = socket.getMediaClock().toNanos(rtpts);
+				socket.updateTimestamp(ts);
+				// The first packet of a talkspurt is marked
+				if (first) socket.markNextPacket();
+				first = false;
+				send(rtphl+samples);
+				rtpts += samples;
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"G711 packetizer stopped !");
+
+	}
+
+	/**
+	 * Encodes 16 bits little endian PCM samples with mu-law.
+	 * @param count The number of samples
+	 */
+	public static void encodeULaw(byte[] pcm, int offset, byte[] dst, int dstOffset, int count) {
+		final byte[] table = ULAW_TABLE;
+		for (int i=0;i<count;i++) {
+			int j = offset+2*i;
+			dst[dstOffset+i] = table[(pcm[j+1]&0xFF)<<6 | (pcm[j]&0xFF)>>2];
+		}
+	}
+
+	/**
+	 * Encodes 16 bits little endian PCM samples with A-law.
+	 * @param count The number of samples
+	 */
+	public static void encodeALaw(byte[] pcm, int offset, byte[] dst, int dstOffset, int count) {
+		final byte[] table = ALAW_TABLE;
+		for (int i=0;i<count;i++) {
+			int j = offset+2*i;
+			dst[dstOffset+i] = table[(pcm[j+1]&0xFF)<<5 | (pcm[j]&0xFF)>>3];
+		}
+	}
+
+	/** Encodes a 14 bits sample with mu-law. */
+	private static byte linearToULaw(int pcm) {
+		int mask;
+		if (pcm < 0) {
+			pcm = -pcm;
+			mask = 0x7F;
+		} else {
+			mask = 0xFF;
+		}
+		if (pcm > 8159) pcm = 8159;
+		// The bias of mu-law
+		pcm += 0x84>>2;
+		int seg = segment(pcm, ULAW_SEGMENTS);
+		if (seg >= 8) return (byte) (0x7F ^ mask);
+		return (byte) (((seg << 4) | ((pcm >> (seg+1)) & 0x0F)) ^ mask);
+	}
+
+	/** Encodes a 13 bits sample with A-law. */
+	private static byte linearToALaw(int pcm) {
+		int mask;
+		if (pcm >= 0) {
+			mask = 0xD5;
+		} else {
+			mask = 0x55;
+			pcm = -pcm-1;
+		}
+		int seg = segment(pcm, ALAW_SEGMENTS);
+		if (seg >= 8) return (byte) (0x7F ^ mask);
+		int aval = seg << 4;
+		if (seg < 2) aval |= (pcm >> 1) & 0x0F;
+		else aval |= (pcm >> seg) & 0x0F;
+		return (byte) (aval ^ mask);
+	}
+
+	private static int segment(int value, int[] segments) {
+		for (int i=0;i<segments.length;i++) {
+			if (value <= segments[i]) return i;
+		}
+		return segments.length;
+	}
+
+}
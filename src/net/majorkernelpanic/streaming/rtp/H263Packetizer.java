@@ -19,7 +19,6 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.util.Log;
 
 /**
  *   RFC 4629.
@@ -28,12 +27,19 @@ import android.util.Log;
  *   
  *   Must be fed with an InputStream containing H.263 frames.
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
+ *   The timestamps of the frames are computed from their temporal reference.
  *   
  */
 public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H263Packetizer";
-	private Statistics stats = new Statistics();
+
+	/** Each h263 frame starts with: 0000 0000 0000 0000 1000 00?? */
+	private final static byte[] PSC = new byte[] {0, 0, (byte) 0x80};
+	private final static byte[] PSC_MASK = new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFC};
+
+	/** The temporal reference counts pictures at 30000/1001 Hz, that is 3003 units of the 90 kHz clock. */
+	private final static long TR_DURATION = 3003;
 
 	private Thread t;
 
@@ -63,83 +69,51 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void run() {
-		long time, duration = 0;
-		int i = 0, j = 0, tr;
-		boolean firstFragment = true;
-		byte[] nextBuffer;
-		stats.reset();
+		int tr, lastTr = -1, len;
+		boolean first, end;
+		long rtpts = socket.getMediaClock().toRtp(ts);
 
 		try { 
+			// Skips whatever precedes the first picture
+			source.skipTo(PSC, PSC_MASK);
+
 			while (!Thread.interrupted()) {
-				
-				if (j==0) buffer = socket.requestBuffer();
-				socket.updateTimestamp(ts);
-				
-				// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
-				buffer[rtphl] = 0;
-				buffer[rtphl+1] = 0;
-				
-				time = System.nanoTime();
-				if (fill(rtphl+j+2,MAXPACKETSIZE-rtphl-j-2)<0) return;
-				duration += System.nanoTime() - time;
-				j = 0;
-				// Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
-				// Here we search where the next frame begins in the bit stream
-				for (i=rtphl+2;i<MAXPACKETSIZE-1;i++) {
-					if (buffer[i]==0 && buffer[i+1]==0 && (buffer[i+2]&0xFC)==0x80) {
-						j=i;
-						break;
-					}
-				}
-				// Parse temporal reference
-				tr = (buffer[i+2]&0x03)<<6 | (buffer[i+3]&0xFF)>>2;
-				//Log.d(TAG,"j: "+j+" buffer: "+printBuffer(rtphl, rtphl+5)+" tr: "+tr);
-				if (firstFragment) {
-					// This is the first fragment of the frame -> header is set to 0x0400
-					buffer[rtphl] = 4;
-					firstFragment = false;
-				} else {
-					buffer[rtphl] = 0;
-				}
-				if (j>0) {
-					// We have found the end of the frame
-					stats.push(duration);
-					ts+= stats.average(); duration = 0;
-					//Log.d(TAG,"End of frame ! duration: "+stats.average());
-					// The last fragment of a frame has to be marked
-					socket.markNextPacket();
-					send(j);
-					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
-					buffer = nextBuffer;
-					j = MAXPACKETSIZE-j-2;
-					firstFragment = true;
-				} else {
-					// We have not found the beginning of another frame
-					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
-				}
-			}
-		} catch (IOException e) { 
-		} catch (InterruptedException e) {}
 
-		Log.d(TAG,"H263 Packetizer stopped !");
+				// Parses the temporal reference of the picture, the 8 bits that follow the PSC.
+				// The timestamp of the picture is derived from it, TR wraps around after 255.
+				tr = (source.peek(2)&0x03)<<6 | source.peek(3)>>2;
+				if (lastTr >= 0) rtpts += ((tr-lastTr)&0xFF)*TR_DURATION;
+				lastTr = tr;
+				ts = socket.getMediaClock().toNanos(rtpts);
 
-	}
+				// The first two bytes of the PSC are not sent, the P bit replaces them (See section 6.1.1 of RFC 4629)
+				source.skipBytes(2);
+				first = true;
+
+				do {
+					buffer = socket.requestBuffer();
+					socket.updateTimestamp(ts);
 
-	private int fill(int offset,int length) throws IOException {
+					// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
+					// The first fragment of the frame has its P bit set -> header is set to 0x0400
+					buffer[rtphl] = (byte) (first ? 4 : 0);
+					buffer[rtphl+1] = 0;
+					first = false;
 
-		int sum = 0, len;
+					// The picture is copied in the packet until the beginning of the next one
+					len = source.readUntil(buffer, rtphl+2, MAXPACKETSIZE-rtphl-2, PSC, PSC_MASK);
+					end = len < MAXPACKETSIZE-rtphl-2 || source.startsWith(PSC, PSC_MASK);
+
+					// The last fragment of a frame has to be marked
+					if (end) socket.markNextPacket();
+					send(rtphl+2+len);
+				} while (!end);
 
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
 			}
-			else sum+=len;
-		}
+		} catch (IOException e) { 
+		} catch (InterruptedException e) {}
 
-		return sum;
+		Log.d(TAG,"H263 Packetizer stopped !");
 
 	}
 
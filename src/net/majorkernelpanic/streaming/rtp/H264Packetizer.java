@@ -19,8 +19,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.util.Log;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -30,20 +29,32 @@ import android.util.Log;
  *   
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
+ *   Or with an {@link EncodedFrameSource}, whose frames are access units in Annex B format.
+ *   
+ *   Small NAL units sharing the same timestamp are aggregated in STAP-A packets. 
+ *   A STAP-A is sent once it contains a slice, when a NAL unit with another timestamp 
+ *   or one that does not fit comes, or when it has been waiting for too long.
  *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H264Packetizer";
 
+	private final static byte[] ZERO = new byte[] {0};
+
 	private Thread t = null;
 	private int naluLength = 0;
-	private long delay = 0, oldtime = 0;
-	private Statistics stats = new Statistics();
 	private byte[] sps = null, pps = null, stapa = null;
 	byte[] header = new byte[5];	
 	private int count = 0;
 	private int streamType = 1;
+	private ByteBuffer mNal = null;
+
+	private boolean mAggregation = true;
+	private long mAggregationDelay = 20;
+	private int mStapLength = 0, mStapCount = 0;
+	private byte mStapNri = 0;
+	private long mStapTs = 0, mStapDeadline = 0;
 
 
 	public H264Packetizer() {
@@ -97,13 +108,26 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}	
 
+	/** Enables or disables the aggregation of small NAL units in STAP-A packets, enabled by default. */
+	public void setAggregationEnabled(boolean enabled) {
+		mAggregation = enabled;
+	}
+
+	/** 
+	 * Sets the maximum time in ms a NAL unit waits in a STAP-A for other NAL units, 20 ms by default.
+	 * The STAP-A is sent once that delay has passed, even if the next NAL unit has not come yet.
+	 */
+	public void setAggregationDelay(long delay) {
+		mAggregationDelay = delay;
+	}
+
 	public void run() {
-		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
-		stats.reset();
+		mStapLength = 0;
+		socket.getMediaClock().reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
+		if (is instanceof EncodedFrameSource) {
 			streamType = 1;
 			socket.setCacheSize(0);
 		} else {
@@ -113,18 +137,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 		try {
 			while (!Thread.interrupted()) {
-
-				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
 				send();
-				// We measure how long it took to receive NAL units from the phone
-				duration = System.nanoTime() - oldtime;
-
-				stats.push(duration);
-				// Computes the average duration of a NAL unit
-				delay = stats.average();
-				//Log.d(TAG,"duration: "+duration/1000000+" delay: "+delay/1000000);
-
 			}
 		} catch (IOException e) {
 		} catch (InterruptedException e) {}
@@ -135,38 +149,85 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	/**
 	 * Reads a NAL unit in the FIFO and sends it.
-	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * With the MediaCodec API, reads a whole access unit and sends all the NAL units it contains.
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
-
 		if (streamType == 0) {
+			awaitNalUnit();
 			// NAL units are preceeded by their length, we parse the length
 			fill(header,0,5);
-			ts += delay;
+			// The timestamp of the NAL unit is estimated from the time at which it was received
+			ts = socket.getMediaClock().tick(System.nanoTime());
 			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
 			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
+			// The end of the access unit is not known, a slice is assumed to end it
+			int type = header[4]&0x1F;
+			sendNalUnit(type >= 1 && type <= 5);
+		} else {
+			sendAccessUnit();
+		}
+	}
+
+	/**
+	 * Splits an output buffer of the MediaCodec in NAL units and sends them. 
+	 * Encoders often output several NAL units in one buffer (SPS, PPS and IDR, or several slices),
+	 * they are separated by start codes (0x000001 or 0x00000001). 
+	 * The NAL units are copied straight from the buffer of the encoder into the RTP packets.
+	 */
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		EncodedFrameSource.Frame frame = ((EncodedFrameSource)is).readFrame();
+		try {
+			ByteBuffer au = frame.data;
+			ts = frame.presentationTimeUs*1000L;
+			int end = au.limit();
+			int start = AnnexBScanner.find(au, au.position(), end);
+			if (start < 0) {
+				// Nothing preceeds the NAL unit
+				if (end > au.position()) sendNalUnit(au, au.position(), end, end, true);
 				return;
 			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+			// A NAL unit is sent once the next one is found, to know which one is the last 
+			int pending = -1, pendingEnd = 0;
+			while (start >= 0) {
+				start += 3;
+				int next = AnnexBScanner.find(au, start, end);
+				int stop = next < 0 ? end : next;
+				// Drops the zero byte of a 4 bytes start code and the trailing zero bytes
+				while (stop > start && au.get(stop-1) == 0) stop--;
+				if (stop > start) {
+					if (pending >= 0) sendNalUnit(au, pending, pendingEnd, end, false);
+					pending = start;
+					pendingEnd = stop;
+				}
+				start = next;
+			}
+			if (pending >= 0) sendNalUnit(au, pending, pendingEnd, end, true);
+		} finally {
+			mNal = null;
+			frame.release();
 		}
+	}
+
+	private void sendNalUnit(ByteBuffer au, int start, int stop, int end, boolean last) throws IOException, InterruptedException {
+		header[4] = au.get(start);
+		naluLength = stop-start;
+		au.limit(stop);
+		au.position(start+1);
+		mNal = au;
+		try {
+			sendNalUnit(last);
+		} finally {
+			au.limit(end);
+		}
+	}
+
+	/**
+	 * Sends the NAL unit whose header is in header[4] and whose length is naluLength. 
+	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * @param last Whether it is the last NAL unit of the access unit, the marker bit is set on its last packet
+	 */
+	private void sendNalUnit(boolean last) throws IOException, InterruptedException {
+		int sum = 1, len = 0, type;
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
@@ -185,28 +246,44 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
 		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		if (type == 5 && sps != null && pps != null) {
+		if (type == 5 && sps != null && pps != null && mAggregation) {
+			int offset = beginNal(sps.length);
+			System.arraycopy(sps, 0, buffer, offset, sps.length);
+			endNal(sps.length, sps[0]);
+			offset = beginNal(pps.length);
+			System.arraycopy(pps, 0, buffer, offset, pps.length);
+			endNal(pps.length, pps[0]);
+		} else if (type == 5 && sps != null && pps != null) {
 			buffer = socket.requestBuffer();
-			socket.markNextPacket();
 			socket.updateTimestamp(ts);
 			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
 			super.send(rtphl+stapa.length);
 		}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
+		//Log.d(TAG,"- Nal unit length: " + naluLength + " type: "+type);
 
+		// Small NAL unit => Aggregated in a STAP-A
+		if (mAggregation && naluLength<=MAXPACKETSIZE-rtphl-3) {
+			int offset = beginNal(naluLength);
+			buffer[offset] = header[4];
+			fill(buffer, offset+1, naluLength-1);
+			endNal(naluLength, header[4]);
+			if (last) flush(true);
+		}
 		// Small NAL unit => Single NAL unit 
-		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
+		else if (naluLength<=MAXPACKETSIZE-rtphl-2) {
+			flush(false);
 			buffer = socket.requestBuffer();
 			buffer[rtphl] = header[4];
 			len = fill(buffer, rtphl+1,  naluLength-1);
 			socket.updateTimestamp(ts);
-			socket.markNextPacket();
+			if (last) socket.markNextPacket();
 			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
+			//Log.d(TAG,"----- Single NAL unit - len:"+len);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
+			flush(false);
 
 			// Set FU-A header
 			header[1] = (byte) (header[4] & 0x1F);  // FU header type
@@ -225,7 +302,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				if (sum >= naluLength) {
 					// End bit on
 					buffer[rtphl+1] += 0x40;
-					socket.markNextPacket();
+					if (last) socket.markNextPacket();
 				}
 				super.send(len+rtphl+2);
 				// Switch start bit
@@ -235,18 +312,80 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
+	/**
+	 * Waits for the next NAL unit of the MediaRecorder until the deadline of the STAP-A being built, 
+	 * the STAP-A is sent if the NAL unit is late.
+	 */
+	private void awaitNalUnit() throws IOException, InterruptedException {
+		while (mStapLength > 0 && source.available() == 0) {
+			if (System.nanoTime() >= mStapDeadline) {
+				flush(false);
+				return;
 			}
-			else sum+=len;
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Makes room for a NAL unit in the STAP-A being built, sends it first if needed.
+	 * @return The offset in the buffer where the NAL unit must be written
+	 */
+	private int beginNal(int length) throws IOException, InterruptedException {
+		if (mStapLength > 0 && (mStapTs != ts || rtphl+mStapLength+2+length > MAXPACKETSIZE || System.nanoTime() > mStapDeadline)) {
+			flush(mStapTs != ts);
 		}
-		return sum;
+		if (mStapLength == 0) {
+			buffer = socket.requestBuffer();
+			mStapLength = 1;
+			mStapCount = 0;
+			mStapNri = 0;
+			mStapTs = ts;
+			mStapDeadline = System.nanoTime() + mAggregationDelay*1000000L;
+		}
+		buffer[rtphl+mStapLength] = (byte) (length >> 8);
+		buffer[rtphl+mStapLength+1] = (byte) (length & 0xFF);
+		return rtphl+mStapLength+2;
+	}
+
+	private void endNal(int length, byte nalHeader) {
+		mStapLength += 2+length;
+		mStapCount++;
+		// The NRI of a STAP-A is the highest NRI of the NAL units it contains
+		if ((nalHeader & 0x60) > mStapNri) mStapNri = (byte) (nalHeader & 0x60);
+	}
+
+	/** Sends the STAP-A being built, as a single NAL unit packet if it contains only one NAL unit. */
+	private void flush(boolean marker) throws IOException {
+		if (mStapLength == 0) return;
+		int length;
+		if (mStapCount == 1) {
+			length = mStapLength-3;
+			System.arraycopy(buffer, rtphl+3, buffer, rtphl, length);
+		} else {
+			buffer[rtphl] = (byte) (mStapNri | 24);
+			length = mStapLength;
+		}
+		mStapLength = 0;
+		socket.updateTimestamp(mStapTs);
+		if (marker) socket.markNextPacket();
+		super.send(rtphl+length);
 	}
 
+	private int fill(byte[] buffer, int offset,int length) throws IOException {
+		if (mNal != null) {
+			// The NAL unit comes from an output buffer of the MediaCodec
+			if (mNal.remaining() < length) throw new IOException("End of NAL unit");
+			mNal.get(buffer, offset, length);
+		} else {
+			source.readFully(buffer, offset, length);
+		}
+		return length;
+	}
+
+	/** 
+	 * Looks for the next NAL unit of type 1 or 5 whose length makes sense, and reads its header. 
+	 * NAL units are less than 100000 bytes long, the first byte of their length is 0.
+	 */
 	private void resync() throws IOException {
 		int type;
 
@@ -254,28 +393,24 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 		while (true) {
 
-			header[0] = header[1];
-			header[1] = header[2];
-			header[2] = header[3];
-			header[3] = header[4];
-			header[4] = (byte) is.read();
+			source.skipTo(ZERO);
 
-			type = header[4]&0x1F;
+			type = source.peek(4)&0x1F;
 
 			if (type == 5 || type == 1) {
-				naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+				naluLength = source.peek(3) | source.peek(2)<<8 | source.peek(1)<<16;
 				if (naluLength>0 && naluLength<100000) {
-					oldtime = System.nanoTime();
+					source.readFully(header, 0, 5);
 					Log.e(TAG,"A NAL unit may have been found in the bit stream !");
 					break;
 				}
 				if (naluLength==0) {
 					Log.e(TAG,"NAL unit with NULL size found...");
-				} else if (header[3]==0xFF && header[2]==0xFF && header[1]==0xFF && header[0]==0xFF) {
-					Log.e(TAG,"NAL unit with 0xFFFFFFFF size found...");
 				}
 			}
 
+			source.skipBytes(1);
+
 		}
 
 	}
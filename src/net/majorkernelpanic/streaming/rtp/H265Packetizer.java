@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *
+ *   RFC 7798.
+ *
+ *   H.265 streaming over RTP.
+ *
+ *   Must be fed with an {@link EncodedFrameSource}, whose frames are access units in Annex B format.
+ *   Or with an InputStream containing an Annex B byte stream, a recorded .265 file for instance.
+ *   The access units of the byte stream are then found with the NAL unit headers and timed with
+ *   {@link #setFrameRate(int)}, and the packets are sent as fast as the stream is read.
+ *
+ *   Small NAL units of the same access unit are aggregated in AP packets, large NAL units
+ *   are split in FU packets. The VPS, SPS and PPS are sent before each IRAP picture
+ *   unless the access unit already contains them.
+ *
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "H265Packetizer";
+
+	private final static byte[] START_CODE = new byte[] {0,0,1};
+
+	/** NAL unit types, see table 7-1 of the H.265 specification. */
+	private final static int NAL_VPS = 32, NAL_SPS = 33, NAL_PPS = 34, NAL_AUD = 35, NAL_PREFIX_SEI = 39;
+	private final static int NAL_AP = 48, NAL_FU = 49;
+
+	private Thread t = null;
+	private byte[] vps = null, sps = null, pps = null;
+	private boolean mParametersSent = false;
+
+	private byte[] mStaging = new byte[64*1024];
+	private int mFrameRate = 30;
+	private long mRtpTs = 0;
+	private boolean mNewAccessUnit = true, mPicture = false;
+
+	private boolean mAggregation = true;
+	private long mAggregationWindow = 20;
+	private int mApLength = 0, mApCount = 0;
+	private int mApLayerId = 0, mApTid = 0;
+	private long mApTs = 0, mApDeadline = 0;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException e) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Sets the parameter sets of the stream, they are replaced by those found in the stream. */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	/** Sets the frame rate of an Annex B byte stream, 30 fps by default. Not used with an {@link EncodedFrameSource}. */
+	public void setFrameRate(int frameRate) {
+		mFrameRate = frameRate;
+	}
+
+	/** Enables or disables the aggregation of small NAL units in AP packets, enabled by default. */
+	public void setAggregationEnabled(boolean enabled) {
+		mAggregation = enabled;
+	}
+
+	/**
+	 * Sets the time window in ms during which NAL units are aggregated in the same AP, 20 ms by default.
+	 * The window is only checked when a NAL unit arrives: one that comes after the window of the AP
+	 * being built closed starts a new AP. The AP is also sent at the end of each access unit, so with 
+	 * an {@link EncodedFrameSource} it never waits for the next frame, and an Annex B byte stream is 
+	 * read as fast as it can be.
+	 */
+	public void setAggregationWindow(long window) {
+		mAggregationWindow = window;
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+		mApLength = 0;
+		mNewAccessUnit = true;
+		mPicture = false;
+		mRtpTs = socket.getMediaClock().toRtp(ts);
+		socket.setCacheSize(0);
+
+		try {
+			if (source != null) {
+				// Skips whatever precedes the first NAL unit
+				source.skipTo(START_CODE);
+			}
+			while (!Thread.interrupted()) {
+				if (source != null) {
+					sendNextNalUnit();
+				} else {
+					sendAccessUnit();
+				}
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+
+	}
+
+	/**
+	 * Splits an output buffer of the MediaCodec in NAL units and sends them.
+	 * The NAL units are copied straight from the buffer of the encoder into the RTP packets.
+	 * The parameter sets of codec config buffers are only kept, they are sent with the next IRAP picture.
+	 */
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		EncodedFrameSource.Frame frame = ((EncodedFrameSource)is).readFrame();
+		try {
+			ByteBuffer au = frame.data;
+			boolean config = frame.isCodecConfig();
+			ts = frame.presentationTimeUs*1000L;
+			if (!config) mParametersSent = false;
+			int end = au.limit();
+			int start = AnnexBScanner.find(au, au.position(), end);
+			if (start < 0) {
+				// Nothing preceeds the NAL unit
+				if (end > au.position()) sendNalUnit(au, au.position(), end, end, true, config);
+				return;
+			}
+			// A NAL unit is sent once the next one is found, to know which one is the last
+			int pending = -1, pendingEnd = 0;
+			while (start >= 0) {
+				start += 3;
+				int next = AnnexBScanner.find(au, start, end);
+				int stop = next < 0 ? end : next;
+				// Drops the zero byte of a 4 bytes start code and the trailing zero bytes
+				while (stop > start && au.get(stop-1) == 0) stop--;
+				if (stop > start) {
+					if (pending >= 0) sendNalUnit(au, pending, pendingEnd, end, false, config);
+					pending = start;
+					pendingEnd = stop;
+				}
+				start = next;
+			}
+			if (pending >= 0) sendNalUnit(au, pending, pendingEnd, end, true, config);
+		} finally {
+			frame.release();
+		}
+	}
+
+	private void sendNalUnit(ByteBuffer au, int start, int stop, int end, boolean last, boolean config) throws IOException, InterruptedException {
+		au.limit(stop);
+		au.position(start);
+		try {
+			if (config) updateParameterSet(au);
+			else sendNalUnit(au, last);
+		} finally {
+			au.limit(end);
+		}
+	}
+
+	/**
+	 * Reads the next NAL unit of an Annex B byte stream and sends it.
+	 * Once it contains a slice, an access unit ends before an AUD, a parameter set, a prefix SEI, 
+	 * or the first slice of the next picture.
+	 */
+	private void sendNextNalUnit() throws IOException, InterruptedException {
+		int length = 0;
+		source.skipBytes(START_CODE.length);
+		try {
+			while (true) {
+				length += source.readUntil(mStaging, length, mStaging.length-length, START_CODE, null);
+				if (length < mStaging.length) break;
+				mStaging = Arrays.copyOf(mStaging, 2*mStaging.length);
+			}
+		} catch (EOFException e) {
+			if (length == 0) throw e;
+		}
+		// Drops the zero byte of a 4 bytes start code and the trailing zero bytes
+		while (length > 0 && mStaging[length-1] == 0) length--;
+
+		// The parameter sets and SEI that precede the first slice belong to its access unit
+		if (length > 0 && ((mStaging[0]>>1)&0x3F) <= 31) mPicture = true;
+		boolean last;
+		try {
+			int type = (source.peek(3)>>1)&0x3F;
+			last = mPicture && ((type >= NAL_VPS && type <= NAL_AUD) || type == NAL_PREFIX_SEI || (type <= 31 && (source.peek(5)&0x80) != 0));
+		} catch (EOFException e) {
+			last = true;
+		}
+		if (last) mPicture = false;
+
+		if (mNewAccessUnit) {
+			mRtpTs += 90000/mFrameRate;
+			ts = socket.getMediaClock().toNanos(mRtpTs);
+			mParametersSent = false;
+		}
+		mNewAccessUnit = last;
+
+		if (length > 0) sendNalUnit(ByteBuffer.wrap(mStaging, 0, length), last);
+		else if (last) flush(true);
+	}
+
+	/**
+	 * Sends a NAL unit, preceeded by the parameter sets if it is the first IRAP NAL unit of the access unit.
+	 * @param nal The NAL unit, from its header to its last byte
+	 * @param last Whether it is the last NAL unit of the access unit, the marker bit is set on its last packet
+	 */
+	private void sendNalUnit(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		if (nal.remaining() < 3) {
+			if (last) flush(true);
+			return;
+		}
+		int type = (nal.get(nal.position())>>1)&0x3F;
+
+		if (type >= NAL_VPS && type <= NAL_PPS) {
+			// The stream already contains the parameter sets, they replace ours
+			updateParameterSet(nal);
+			mParametersSent = true;
+		} else if (type >= 16 && type <= 21 && !mParametersSent && vps != null && sps != null && pps != null) {
+			// Those should allow the stream to be decoded even if no SDP was sent to the decoder
+			mParametersSent = true;
+			packetize(ByteBuffer.wrap(vps), false);
+			packetize(ByteBuffer.wrap(sps), false);
+			packetize(ByteBuffer.wrap(pps), false);
+		}
+
+		packetize(nal, last);
+	}
+
+	/** Keeps a copy of a VPS, SPS or PPS. */
+	private void updateParameterSet(ByteBuffer nal) {
+		int type = (nal.get(nal.position())>>1)&0x3F;
+		byte[] copy = new byte[nal.remaining()];
+		nal.duplicate().get(copy);
+		if (type == NAL_VPS) vps = copy;
+		else if (type == NAL_SPS) sps = copy;
+		else if (type == NAL_PPS) pps = copy;
+	}
+
+	/**
+	 * Sends the NAL unit in an AP, in a single NAL unit packet, or splits it in FU packets (RFC 7798).
+	 * @param last Whether it is the last NAL unit of the access unit, the marker bit is set on its last packet
+	 */
+	private void packetize(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		int length = nal.remaining();
+		byte h0 = nal.get(nal.position()), h1 = nal.get(nal.position()+1);
+
+		// Small NAL unit => Aggregated in an AP
+		if (mAggregation && length <= MAXPACKETSIZE-rtphl-4) {
+			int offset = beginNal(length);
+			nal.get(buffer, offset, length);
+			endNal(length, h0, h1);
+			if (last) flush(true);
+		}
+		// Small NAL unit => Single NAL unit
+		else if (length <= MAXPACKETSIZE-rtphl) {
+			flush(false);
+			buffer = socket.requestBuffer();
+			nal.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(rtphl+length);
+		}
+		// Large NAL unit => Split nal unit
+		else {
+			flush(false);
+
+			// The PayloadHdr is the NAL unit header with the type 49,
+			// the FU header contains the S and E bits and the type of the NAL unit
+			byte p0 = (byte) ((h0 & 0x81) | NAL_FU<<1);
+			byte fu = (byte) (0x80 | (h0>>1)&0x3F);
+			nal.position(nal.position()+2);
+
+			while (nal.hasRemaining()) {
+				int len = Math.min(nal.remaining(), MAXPACKETSIZE-rtphl-3);
+				buffer = socket.requestBuffer();
+				buffer[rtphl] = p0;
+				buffer[rtphl+1] = h1;
+				buffer[rtphl+2] = fu;
+				nal.get(buffer, rtphl+3, len);
+				socket.updateTimestamp(ts);
+				// Last packet of the NAL unit
+				if (!nal.hasRemaining()) {
+					// End bit on
+					buffer[rtphl+2] |= 0x40;
+					if (last) socket.markNextPacket();
+				}
+				super.send(rtphl+3+len);
+				// Switch start bit
+				fu &= 0x7F;
+			}
+		}
+	}
+
+	/**
+	 * Makes room for a NAL unit in the AP being built, sends it first if needed.
+	 * @return The offset in the buffer where the NAL unit must be written
+	 */
+	private int beginNal(int length) throws IOException, InterruptedException {
+		if (mApLength > 0 && (mApTs != ts || rtphl+mApLength+2+length > MAXPACKETSIZE || System.nanoTime() > mApDeadline)) {
+			flush(mApTs != ts);
+		}
+		if (mApLength == 0) {
+			buffer = socket.requestBuffer();
+			mApLength = 2;
+			mApCount = 0;
+			mApLayerId = 63;
+			mApTid = 7;
+			mApTs = ts;
+			mApDeadline = System.nanoTime() + mAggregationWindow*1000000L;
+		}
+		buffer[rtphl+mApLength] = (byte) (length >> 8);
+		buffer[rtphl+mApLength+1] = (byte) (length & 0xFF);
+		return rtphl+mApLength+2;
+	}
+
+	private void endNal(int length, byte h0, byte h1) {
+		mApLength += 2+length;
+		mApCount++;
+		// The LayerId and the TID of an AP are the lowest of the NAL units it contains
+		int layerId = (h0&0x01)<<5 | (h1&0xF8)>>3, tid = h1&0x07;
+		if (layerId < mApLayerId) mApLayerId = layerId;
+		if (tid < mApTid) mApTid = tid;
+	}
+
+	/** Sends the AP being built, as a single NAL unit packet if it contains only one NAL unit. */
+	private void flush(boolean marker) throws IOException {
+		if (mApLength == 0) return;
+		int length;
+		if (mApCount == 1) {
+			length = mApLength-4;
+			System.arraycopy(buffer, rtphl+4, buffer, rtphl, length);
+		} else {
+			buffer[rtphl] = (byte) (NAL_AP<<1 | mApLayerId>>5);
+			buffer[rtphl+1] = (byte) ((mApLayerId&0x1F)<<3 | mApTid);
+			length = mApLength;
+		}
+		mApLength = 0;
+		socket.updateTimestamp(mApTs);
+		if (marker) socket.markNextPacket();
+		super.send(rtphl+length);
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends packets interleaved in a RTSP TCP connection, on one channel of the {@link InterleavedWriter}
+ * of the connection. Blocks when the connection can not keep up with the stream.
+ */
+public class InterleavedTransport implements PacketTransport {
+
+	private final InterleavedWriter mWriter;
+	private final byte mChannelIdentifier;
+
+	public InterleavedTransport(OutputStream outputStream, byte channelIdentifier) {
+		mWriter = InterleavedWriter.get(outputStream);
+		mChannelIdentifier = channelIdentifier;
+	}
+
+	public byte getChannelIdentifier() {
+		return mChannelIdentifier;
+	}
+
+	@Override
+	public void send(ByteBuffer packet, boolean flush) throws InterruptedException {
+		mWriter.write(mChannelIdentifier, packet.array(), packet.arrayOffset()+packet.position(), packet.remaining(), flush);
+	}
+
+	@Override
+	public int getBacklog() {
+		return mWriter.getQueuedBytes();
+	}
+
+	/** The connection is shared with the other tracks and with RTSP, it stays open. */
+	@Override
+	public void close() {}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the RTP and RTCP packets interleaved in a RTSP TCP connection (RFC 2326, 10.12).
+ * There is one writer per connection, shared by all the {@link RtpSocket} and
+ * {@link net.majorkernelpanic.streaming.rtcp.SenderReport} using it: get it with {@link #get(OutputStream)},
+ * and call {@link #release(OutputStream)} when the connection is closed.
+ * Packets are framed as '$', channel, length and payload, and appended to a queue.
+ * The Thread of the writer takes everything that was queued and writes it with a single call,
+ * when a packet carrying a marker bit is queued, when enough data was queued, or when the
+ * oldest packet has been waiting for {@link #MAX_LATENCY} ms.
+ * When the connection can not keep up, the queue fills up and {@link #write} blocks the sockets.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Maximum number of bytes that can be queued. */
+	public final static int QUEUE_SIZE = 128*1024;
+
+	/** Queued data is written as soon as there is that much of it. */
+	private final static int COALESCE_SIZE = 16*1024;
+
+	/** Maximum time in ms a packet stays in the queue when no flush is requested. */
+	public final static long MAX_LATENCY = 5;
+
+	private final static Map<OutputStream, InterleavedWriter> sWriters = new HashMap<OutputStream, InterleavedWriter>();
+
+	private final OutputStream mOutputStream;
+	private byte[] mQueue = new byte[QUEUE_SIZE];
+	private byte[] mSpare = new byte[QUEUE_SIZE];
+	private int mQueued = 0;
+	private long mQueuedSince = 0;
+	private boolean mFlush = false;
+	private boolean mClosed = false;
+	private Thread mThread = null;
+	private long mBlocked = 0;
+
+	/** Returns the writer of the connection, creating it if needed. */
+	public static InterleavedWriter get(OutputStream outputStream) {
+		synchronized (sWriters) {
+			InterleavedWriter writer = sWriters.get(outputStream);
+			if (writer == null || writer.isClosed()) {
+				writer = new InterleavedWriter(outputStream);
+				sWriters.put(outputStream, writer);
+			}
+			return writer;
+		}
+	}
+
+	/** Closes the writer of a connection that is closed, its queue is dropped. */
+	public static void release(OutputStream outputStream) {
+		InterleavedWriter writer;
+		synchronized (sWriters) {
+			writer = sWriters.remove(outputStream);
+		}
+		if (writer != null) writer.close();
+	}
+
+	private InterleavedWriter(OutputStream outputStream) {
+		mOutputStream = outputStream;
+	}
+
+	/**
+	 * Queues a packet. Blocks while the queue is full.
+	 * @param channel The channel identifier of the packet
+	 * @param buffer The packet
+	 * @param offset Offset of the packet in the buffer
+	 * @param length Length of the packet
+	 * @param flush Whether the queue should be written without waiting for more packets,
+	 * 	typically true for the last packet of a frame and for RTCP packets.
+	 * @return false if the packet was dropped because the connection is closed
+	 */
+	public synchronized boolean write(byte channel, byte[] buffer, int offset, int length, boolean flush) throws InterruptedException {
+		if (mQueued+4+length > QUEUE_SIZE && !mClosed) {
+			long now = System.nanoTime();
+			while (mQueued+4+length > QUEUE_SIZE && !mClosed) {
+				wait();
+			}
+			mBlocked += System.nanoTime()-now;
+		}
+		if (mClosed) return false;
+		if (mQueued == 0) mQueuedSince = System.nanoTime();
+		byte[] queue = mQueue;
+		queue[mQueued++] = '$';
+		queue[mQueued++] = channel;
+		queue[mQueued++] = (byte) (length>>8);
+		queue[mQueued++] = (byte) (length&0xFF);
+		System.arraycopy(buffer, offset, queue, mQueued, length);
+		mQueued += length;
+		if (mThread == null) {
+			mThread = new Thread(this);
+			mThread.start();
+		}
+		if (flush || mQueued >= COALESCE_SIZE) {
+			mFlush = true;
+			notifyAll();
+		}
+		return true;
+	}
+
+	/** Returns the number of bytes waiting to be written to the connection. */
+	public synchronized int getQueuedBytes() {
+		return mQueued;
+	}
+
+	/** Returns the total time in ms sockets have been blocked because the queue was full. */
+	public synchronized long getBlockedTime() {
+		return mBlocked/1000000;
+	}
+
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/** Drops the queued packets and the queue, subsequent calls to {@link #write} will fail. */
+	public synchronized void close() {
+		mClosed = true;
+		mQueued = 0;
+		mQueue = mSpare = null;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				byte[] buffer;
+				int length;
+				synchronized (this) {
+					// The Thread stops after 4 seconds of inactivity and is restarted on the next write
+					long idle = System.nanoTime();
+					while (!mClosed && !mFlush) {
+						long now = System.nanoTime();
+						long wait;
+						if (mQueued > 0) {
+							wait = MAX_LATENCY*1000000 - (now-mQueuedSince);
+							if (wait <= 0) break;
+						} else {
+							wait = 4000000000L - (now-idle);
+							if (wait <= 0) {
+								mThread = null;
+								return;
+							}
+						}
+						wait(wait/1000000, (int) (wait%1000000));
+					}
+					if (mClosed) {
+						mThread = null;
+						return;
+					}
+					buffer = mQueue;
+					length = mQueued;
+					mQueue = mSpare;
+					mSpare = buffer;
+					mQueued = 0;
+					mFlush = false;
+					notifyAll();
+				}
+				// RTSP requests may be written to the same stream by another thread
+				synchronized (mOutputStream) {
+					mOutputStream.write(buffer, 0, length);
+					mOutputStream.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				mThread = null;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Connection lost: "+e.getMessage());
+			close();
+			synchronized (this) {
+				mThread = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Logs with {@link android.util.Log} on Android, and on the standard error stream on any other JVM.
+ * The packetizers, the sockets and the transports log through it, so that they can be used
+ * without Android, for instance with a {@link MemoryTransport} or a {@link FileTransport}.
+ */
+public final class Log {
+
+	private final static boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+	private Log() {}
+
+	public static void v(String tag, String msg) {
+		if (ANDROID) AndroidLog.v(tag, msg);
+	}
+
+	public static void d(String tag, String msg) {
+		if (ANDROID) AndroidLog.d(tag, msg);
+		else System.err.println("D/"+tag+": "+msg);
+	}
+
+	public static void i(String tag, String msg) {
+		if (ANDROID) AndroidLog.i(tag, msg);
+		else System.err.println("I/"+tag+": "+msg);
+	}
+
+	public static void e(String tag, String msg) {
+		if (ANDROID) AndroidLog.e(tag, msg);
+		else System.err.println("E/"+tag+": "+msg);
+	}
+
+	/** Only loaded on Android. */
+	private static class AndroidLog {
+
+		static void v(String tag, String msg) {
+			android.util.Log.v(tag, msg);
+		}
+
+		static void d(String tag, String msg) {
+			android.util.Log.d(tag, msg);
+		}
+
+		static void i(String tag, String msg) {
+			android.util.Log.i(tag, msg);
+		}
+
+		static void e(String tag, String msg) {
+			android.util.Log.e(tag, msg);
+		}
+
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The clock of a RTP stream, shared by the packetizer and the {@link RtpSocket}.
+ *
+ * Converts times in ns to RTP timestamps and back with integer arithmetic only: the result
+ * is rounded to the nearest unit and nothing overflows, whatever the time and the rate.
+ * Converting a timestamp to ns and back always gives the same timestamp, see {@link #advance(long, long)}.
+ *
+ * When the presentation time of the frames is not known, {@link #tick(long)} estimates it from
+ * the time at which frames are received with a phase-locked loop: the estimated period follows
+ * the real frame rate and the jitter of the reception does not make it to the timestamps.
+ */
+public class MediaClock {
+
+	private final static long NS = 1000000000L;
+
+	/** Errors bigger than that mean the stream was interrupted, the loop locks again. */
+	private final static long MAX_ERROR = 500000000L;
+
+	/** Phase and frequency gains of the loop, as right shifts. */
+	private final static int PHASE_SHIFT = 3, FREQUENCY_SHIFT = 6;
+
+	private long mRate;
+	private long mTime, mPeriod;
+	private int mTicks = 0;
+
+	public MediaClock(long rate) {
+		mRate = rate;
+	}
+
+	/** Sets the clock rate in Hz. */
+	public void setRate(long rate) {
+		mRate = rate;
+	}
+
+	public long getRate() {
+		return mRate;
+	}
+
+	/** Converts a time in ns to a RTP timestamp. */
+	public long toRtp(long ns) {
+		return toRtp(ns, mRate);
+	}
+
+	/** Converts a RTP timestamp to a time in ns. */
+	public long toNanos(long units) {
+		return toNanos(units, mRate);
+	}
+
+	/**
+	 * Returns the time in ns of the timestamp that comes the given number of units after
+	 * the timestamp of the time passed. Timestamps computed that way never drift,
+	 * contrary to adding the duration of a frame in ns, which is seldom an integer.
+	 */
+	public long advance(long ns, long units) {
+		return toNanos(toRtp(ns)+units);
+	}
+
+	/** Converts a time in ns to a number of units of a clock running at rate Hz, rounded to the nearest. */
+	public static long toRtp(long ns, long rate) {
+		long s = floorDiv(ns, NS);
+		return s*rate + ((ns-s*NS)*rate + NS/2)/NS;
+	}
+
+	/** Converts a number of units of a clock running at rate Hz to a time in ns, rounded to the nearest. */
+	public static long toNanos(long units, long rate) {
+		long s = floorDiv(units, rate);
+		return s*NS + ((units-s*rate)*NS + rate/2)/rate;
+	}
+
+	/** Resets the frame period estimator. */
+	public void reset() {
+		mTicks = 0;
+		mTime = 0;
+		mPeriod = 0;
+	}
+
+	/**
+	 * Called when a frame is received.
+	 * @param now The time at which the frame was received in ns
+	 * @return The estimated presentation time of the frame in ns
+	 */
+	public long tick(long now) {
+		if (mTicks < 2) {
+			// The first two frames give a first estimation of the period
+			if (mTicks++ == 1) mPeriod = now - mTime;
+			mTime = now;
+			return now;
+		}
+		long expected = mTime + mPeriod;
+		long error = now - expected;
+		if (mPeriod <= 0 || Math.abs(error) > MAX_ERROR) {
+			mTicks = 1;
+			mTime = now;
+			return now;
+		}
+		// The correction of the phase is bounded so that a late or early frame can not
+		// shift the timestamps by more than half a period
+		long correction = error>>PHASE_SHIFT;
+		if (correction > mPeriod/2) correction = mPeriod/2;
+		if (correction < -mPeriod/2) correction = -mPeriod/2;
+		mTime = expected + correction;
+		mPeriod += error>>(PHASE_SHIFT+FREQUENCY_SHIFT);
+		return mTime;
+	}
+
+	/** Returns the estimated duration of a frame in ns, or 0 if it is not known yet. */
+	public long getFramePeriod() {
+		return mTicks >= 2 ? mPeriod : 0;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x/y;
+		if ((x%y != 0) && ((x^y) < 0)) q--;
+		return q;
+	}
+
+}
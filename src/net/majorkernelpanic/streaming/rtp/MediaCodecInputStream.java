@@ -31,9 +31,10 @@ import android.util.Log;
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
  * libstreaming with the new MediaCodec API. This class is not thread safe !  
+ * Packetizers can also read the output buffers frame by frame without copying them, see {@link EncodedFrameSource}.
  */
 @SuppressLint("NewApi")
-public class MediaCodecInputStream extends InputStream {
+public class MediaCodecInputStream extends InputStream implements EncodedFrameSource {
 
 	public final String TAG = "MediaCodecInputStream"; 
 
@@ -41,14 +42,18 @@ public class MediaCodecInputStream extends InputStream {
 	private BufferInfo mBufferInfo = new BufferInfo();
 	private ByteBuffer[] mBuffers = null;
 	private ByteBuffer mBuffer = null;
+	private ByteBuffer[] mViews = null;
+	private final Frame mFrame = new Frame(this);
 	private int mIndex = -1;
 	private boolean mClosed = false;
+	private boolean mEndOfStream = false;
 	
 	public MediaFormat mMediaFormat;
 
 	public MediaCodecInputStream(MediaCodec mediaCodec) {
 		mMediaCodec = mediaCodec;
 		mBuffers = mMediaCodec.getOutputBuffers();
+		mViews = new ByteBuffer[mBuffers.length];
 	}
 
 	@Override
@@ -66,36 +71,12 @@ public class MediaCodecInputStream extends InputStream {
 		int min = 0;
 
 		try {
-			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
-			}
-			
-			if (mClosed) throw new IOException("This InputStream was closed");
+			if (mBuffer==null) dequeue();
 			
 			min = length < mBufferInfo.size - mBuffer.position() ? length : mBufferInfo.size - mBuffer.position(); 
 			mBuffer.get(buffer, offset, min);
 			if (mBuffer.position()>=mBufferInfo.size) {
-				mMediaCodec.releaseOutputBuffer(mIndex, false);
-				mBuffer = null;
+				releaseBuffer();
 			}
 			
 		} catch (RuntimeException e) {
@@ -104,6 +85,84 @@ public class MediaCodecInputStream extends InputStream {
 
 		return min;
 	}
+
+	/**
+	 * Waits for the next output buffer of the MediaCodec and returns a read-only view of it.
+	 * Must not be mixed with calls to {@link #read(byte[], int, int)}.
+	 * @throws IOException If the stream was closed or the MediaCodec stopped
+	 */
+	@Override
+	public Frame readFrame() throws IOException {
+		try {
+			if (mBuffer==null) dequeue();
+		} catch (RuntimeException e) {
+			// The MediaCodec has been stopped or released
+			throw new IOException("The MediaCodec was stopped");
+		}
+		ByteBuffer[] views = mViews;
+		if (views[mIndex] == null) views[mIndex] = mBuffer.asReadOnlyBuffer();
+		ByteBuffer data = views[mIndex];
+		data.limit(mBufferInfo.offset+mBufferInfo.size);
+		data.position(mBufferInfo.offset);
+		mFrame.data = data;
+		mFrame.presentationTimeUs = mBufferInfo.presentationTimeUs;
+		mFrame.flags = 0;
+		if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) mFrame.flags |= FLAG_KEY_FRAME;
+		if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) mFrame.flags |= FLAG_CODEC_CONFIG;
+		return mFrame;
+	}
+
+	@Override
+	public void releaseFrame(Frame frame) {
+		try {
+			releaseBuffer();
+		} catch (RuntimeException e) {
+			// The MediaCodec has been stopped, its buffers are gone anyway
+			mBuffer = null;
+		}
+	}
+
+	/** Gives the current output buffer back to the MediaCodec. */
+	private void releaseBuffer() {
+		if (mBuffer != null) {
+			mMediaCodec.releaseOutputBuffer(mIndex, false);
+			mBuffer = null;
+		}
+	}
+
+	private void dequeue() throws IOException {
+		if (mEndOfStream) throw new IOException("End of stream");
+		while (!Thread.interrupted() && !mClosed) {
+			mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (mIndex>=0 ){
+				//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				mBuffer = mBuffers[mIndex];
+				mBuffer.position(0);
+				// The encoder has been drained, see MediaCodec.BUFFER_FLAG_END_OF_STREAM
+				if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+					mEndOfStream = true;
+					if (mBufferInfo.size == 0) {
+						releaseBuffer();
+						throw new IOException("End of stream");
+					}
+				}
+				break;
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+				mViews = new ByteBuffer[mBuffers.length];
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Log.i(TAG,mMediaFormat.toString());
+			} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Log.v(TAG,"No buffer available...");
+				//return 0;
+			} else {
+				Log.e(TAG,"Message: "+mIndex);
+				//return 0;
+			}
+		}
+		if (mClosed || mBuffer == null) throw new IOException("This InputStream was closed");
+	}
 	
 	public int available() {
 		if (mBuffer != null) 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the packets in memory, in a queue from which they can be taken by another Thread.
+ * Useful to measure the packetizers and the sockets without the network.
+ * With a capacity of 0, packets are only counted.
+ * Otherwise, {@link #send(ByteBuffer, boolean)} blocks while the queue is full, like a slow connection would.
+ */
+public class MemoryTransport implements PacketTransport {
+
+	private final byte[][] mQueue;
+	private final int[] mLengths;
+	private int mHead = 0, mSize = 0, mQueuedBytes = 0;
+	private long mPacketCount = 0, mByteCount = 0;
+	private boolean mClosed = false;
+
+	/** @param capacity The maximum number of packets in the queue */
+	public MemoryTransport(int capacity) {
+		mQueue = new byte[capacity][RtpSocket.MTU];
+		mLengths = new int[capacity];
+	}
+
+	@Override
+	public synchronized void send(ByteBuffer packet, boolean flush) throws InterruptedException {
+		int length = packet.remaining();
+		if (mQueue.length > 0) {
+			while (mSize == mQueue.length && !mClosed) wait();
+			if (mClosed) return;
+			int tail = (mHead+mSize)%mQueue.length;
+			if (mQueue[tail].length < length) mQueue[tail] = new byte[length];
+			packet.get(mQueue[tail], 0, length);
+			mLengths[tail] = length;
+			mSize++;
+			mQueuedBytes += length;
+			notifyAll();
+		}
+		mPacketCount++;
+		mByteCount += length;
+	}
+
+	/**
+	 * Takes the oldest packet of the queue, blocks until there is one.
+	 * @param buffer Where the packet is copied, must be large enough
+	 * @return The length of the packet, or -1 if the transport was closed
+	 */
+	public synchronized int take(byte[] buffer) throws InterruptedException {
+		while (mSize == 0 && !mClosed) wait();
+		return poll(buffer);
+	}
+
+	/** Same as {@link #take(byte[])}, but returns -1 immediately if the queue is empty. */
+	public synchronized int poll(byte[] buffer) {
+		if (mSize == 0) return -1;
+		int length = mLengths[mHead];
+		System.arraycopy(mQueue[mHead], 0, buffer, 0, length);
+		mHead = (mHead+1)%mQueue.length;
+		mSize--;
+		mQueuedBytes -= length;
+		notifyAll();
+		return length;
+	}
+
+	/** Returns the number of packets sent to the transport. */
+	public synchronized long getPacketCount() {
+		return mPacketCount;
+	}
+
+	/** Returns the number of bytes sent to the transport. */
+	public synchronized long getByteCount() {
+		return mByteCount;
+	}
+
+	@Override
+	public synchronized int getBacklog() {
+		return mQueuedBytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the Opus packets of an Ogg Opus file (RFC 7845), so that an {@link OpusPacketizer} can send a recorded file.
+ * The OpusHead and OpusTags packets are handed out as codec config frames, the timestamps
+ * of the other packets are deduced from their durations.
+ * Only the first logical stream of the file is read.
+ */
+public class OggOpusSource extends InputStream implements EncodedFrameSource {
+
+	private final static byte[] CAPTURE_PATTERN = new byte[] {'O','g','g','S'};
+
+	private final ByteSource mSource;
+	private final Frame mFrame = new Frame(this);
+	private final byte[] mHeader = new byte[27];
+	private final byte[] mSegments = new byte[255];
+	private byte[] mPacket = new byte[8*1024];
+	private int mSegmentCount = 0, mSegment = 0, mSerial = 0;
+	private boolean mFirstPage = true;
+	private long mSamples = 0;
+	private int mPacketCount = 0;
+
+	public OggOpusSource(InputStream inputStream) {
+		mSource = inputStream instanceof ByteSource ? (ByteSource) inputStream : new ByteSource(inputStream);
+	}
+
+	@Override
+	public Frame readFrame() throws IOException {
+		int length = 0;
+		while (true) {
+			if (mSegment == mSegmentCount) readPage();
+			int lacing = mSegments[mSegment++]&0xFF;
+			if (length+lacing > mPacket.length) mPacket = Arrays.copyOf(mPacket, 2*(length+lacing));
+			mSource.readFully(mPacket, length, lacing);
+			length += lacing;
+			// A lacing value of 255 means that the packet goes on in the next segment
+			if (lacing < 255) break;
+		}
+		mFrame.data = ByteBuffer.wrap(mPacket, 0, length).asReadOnlyBuffer();
+		mFrame.presentationTimeUs = mSamples*1000/48;
+		if (mPacketCount++ < 2) {
+			mFrame.flags = FLAG_CODEC_CONFIG;
+		} else {
+			mFrame.flags = FLAG_KEY_FRAME;
+			mSamples += OpusPacketizer.getPacketDuration(mFrame.data);
+		}
+		return mFrame;
+	}
+
+	@Override
+	public void releaseFrame(Frame frame) {}
+
+	/** Reads the raw Ogg stream. */
+	@Override
+	public int read() throws IOException {
+		return mSource.read();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mSource.close();
+	}
+
+	/** Reads the header of the next page of the stream, and skips the pages of other streams. */
+	private void readPage() throws IOException {
+		while (true) {
+			mSource.skipTo(CAPTURE_PATTERN);
+			mSource.readFully(mHeader, 0, mHeader.length);
+			mSegmentCount = mHeader[26]&0xFF;
+			mSegment = 0;
+			mSource.readFully(mSegments, 0, mSegmentCount);
+			int serial = (mHeader[14]&0xFF) | (mHeader[15]&0xFF)<<8 | (mHeader[16]&0xFF)<<16 | (mHeader[17]&0xFF)<<24;
+			if (mFirstPage) {
+				mSerial = serial;
+				mFirstPage = false;
+			}
+			if (serial == mSerial && mSegmentCount > 0) return;
+			int length = 0;
+			for (int i=0;i<mSegmentCount;i++) length += mSegments[i]&0xFF;
+			mSource.skipBytes(length);
+		}
+	}
+
+}
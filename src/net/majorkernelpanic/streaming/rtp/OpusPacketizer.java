@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ *   RFC 7587.
+ *
+ *   Opus streaming over RTP, the clock of the stream is always 48 kHz.
+ *
+ *   Must be fed with an {@link EncodedFrameSource}, whose frames are Opus packets:
+ *   a MediaCodecInputStream, or an {@link OggOpusSource} to packetize a recorded file.
+ *
+ *   Each RTP packet carries a single Opus packet. When the Opus packets hold less audio than
+ *   the duration set with {@link #setPtime(int)}, consecutive single frame packets (code 0)
+ *   with the same TOC are merged in one code 3 packet (See section 3.2.5 of RFC 6716).
+ *   The marker bit is set on the first packet of each talkspurt.
+ *
+ */
+public class OpusPacketizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "OpusPacketizer";
+
+	/** An Opus packet can not hold more than 120 ms of audio, that is 48 frames of 2.5 ms. */
+	public final static int MAX_FRAMES_PER_PACKET = 48;
+
+	/** Frame durations in samples at 48 kHz, see table 2 of RFC 6716. */
+	private final static int[] SILK_DURATIONS = {480, 960, 1920, 2880};
+	private final static int[] CELT_DURATIONS = {120, 240, 480, 960};
+
+	private Thread t;
+	private int mPtime = 20;
+	private int[] mSizes = new int[MAX_FRAMES_PER_PACKET];
+	private int mCount = 0, mReserved = 0, mLength = 0, mToc = 0;
+	private long mPacketTs = 0, mNextTs = -1;
+	private boolean mTalkspurt = true;
+
+	public OpusPacketizer() {
+		super();
+		socket.setClockFrequency(48000);
+	}
+
+	public void start() {
+		if (t==null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException ignore) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/**
+	 * Sets the duration of the audio carried by a packet in ms, 20 ms by default.
+	 * Packets of the encoder that are shorter are merged, longer ones are sent as they are.
+	 */
+	public void setPtime(int ptime) {
+		mPtime = ptime;
+	}
+
+	public int getPtime() {
+		return mPtime;
+	}
+
+	public void run() {
+		Log.d(TAG,"Opus packetizer started !");
+		socket.setCacheSize(0);
+		mCount = 0;
+		mNextTs = -1;
+		mTalkspurt = true;
+
+		try {
+			while (!Thread.interrupted()) {
+				EncodedFrameSource.Frame frame = ((EncodedFrameSource)is).readFrame();
+				try {
+					// The OpusHead of the encoder is not sent
+					if (!frame.isCodecConfig()) {
+						ts = frame.presentationTimeUs*1000L;
+						send(frame.data);
+					}
+				} finally {
+					frame.release();
+				}
+			}
+		} catch (IOException e) {
+			// The end of a file, the last frames are sent
+			try {
+				flush();
+			} catch (IOException ignore) {}
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"Opus packetizer stopped !");
+
+	}
+
+	/**
+	 * Returns the duration of an Opus packet in samples at 48 kHz.
+	 * The TOC byte gives the duration of the frames, and its last two bits the number of frames.
+	 */
+	public static int getPacketDuration(ByteBuffer packet) {
+		int p = packet.position();
+		if (packet.remaining() < 1) return 0;
+		int toc = packet.get(p)&0xFF, frames;
+		switch (toc&0x03) {
+		case 0: frames = 1; break;
+		case 3: frames = packet.remaining() < 2 ? 0 : packet.get(p+1)&0x3F; break;
+		default: frames = 2;
+		}
+		int config = toc>>3;
+		int duration;
+		if (config < 12) duration = SILK_DURATIONS[config&0x03];
+		else if (config < 16) duration = (config&0x01) == 0 ? 480 : 960;
+		else duration = CELT_DURATIONS[config&0x03];
+		return frames*duration;
+	}
+
+	private void send(ByteBuffer packet) throws IOException, InterruptedException {
+		int length = packet.remaining();
+		if (length < 1) return;
+		int toc = packet.get(packet.position())&0xFF;
+		int duration = getPacketDuration(packet);
+		long rtpts = socket.getMediaClock().toRtp(ts);
+
+		// The encoder stopped sending packets for a while (DTX), a new talkspurt begins
+		if (mNextTs >= 0 && Math.abs(rtpts-mNextTs) > duration/2) {
+			flush();
+			mTalkspurt = true;
+		}
+		mNextTs = rtpts+duration;
+
+		int count = duration > 0 ? Math.min(mPtime*48/duration, 5760/duration) : 1;
+		if (mCount > 0 && (toc != mToc || rtphl+2+2*(mReserved-1)+mLength+length-1 > MAXPACKETSIZE)) {
+			flush();
+		}
+
+		if ((toc&0x03) != 0 || count <= 1) {
+			// Sent as it is
+			flush();
+			buffer = socket.requestBuffer();
+			packet.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (mTalkspurt) socket.markNextPacket();
+			mTalkspurt = false;
+			super.send(rtphl+length);
+			return;
+		}
+
+		if (mCount == 0) {
+			buffer = socket.requestBuffer();
+			mReserved = Math.min(count, MAX_FRAMES_PER_PACKET);
+			mToc = toc;
+			mPacketTs = ts;
+			mLength = 0;
+		}
+		// The frame is written after room for the TOC, the frame count and the sizes of the frames
+		packet.position(packet.position()+1);
+		packet.get(buffer, rtphl+2+2*(mReserved-1)+mLength, length-1);
+		mSizes[mCount++] = length-1;
+		mLength += length-1;
+		if (mCount == mReserved) flush();
+	}
+
+	/** Sends the packet being built, if any. */
+	private void flush() throws IOException {
+		if (mCount == 0) return;
+		int data = rtphl+2+2*(mReserved-1), length;
+		if (mCount == 1) {
+			// A single frame, code 0
+			buffer[rtphl] = (byte) mToc;
+			System.arraycopy(buffer, data, buffer, rtphl+1, mLength);
+			length = 1+mLength;
+		} else {
+			// Code 3, VBR and no padding: the sizes of all the frames but the last one are given
+			buffer[rtphl] = (byte) (mToc | 0x03);
+			buffer[rtphl+1] = (byte) (0x80 | mCount);
+			int h = rtphl+2;
+			for (int i=0;i<mCount-1;i++) {
+				int size = mSizes[i];
+				if (size < 252) {
+					buffer[h++] = (byte) size;
+				} else {
+					buffer[h++] = (byte) (252 + (size&0x03));
+					buffer[h++] = (byte) ((size-252-(size&0x03))>>2);
+				}
+			}
+			System.arraycopy(buffer, data, buffer, h, mLength);
+			length = h-rtphl+mLength;
+		}
+		mCount = 0;
+		socket.updateTimestamp(mPacketTs);
+		if (mTalkspurt) socket.markNextPacket();
+		mTalkspurt = false;
+		super.send(rtphl+length);
+	}
+
+}
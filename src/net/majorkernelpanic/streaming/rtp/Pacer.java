@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Decides when the packets in the FIFO of an {@link RtpSocket} are sent.
+ * The sender thread of the socket calls {@link #pace(int, long)} before sending each packet.
+ * Use {@link RtpSocket#setPacer(Pacer)} to replace the default {@link TokenBucketPacer}.
+ */
+public interface Pacer {
+
+	/**
+	 * Sets the bit rate the stream is supposed to have.
+	 * @param bitrate The bit rate in bit per second, 0 if unknown
+	 */
+	public void setTargetBitrate(long bitrate);
+
+	/**
+	 * If enabled, packets will not be sent before their media timestamp is due.
+	 * It only makes sense if the stream is delayed a little in the FIFO (see {@link RtpSocket#setCacheSize(long)}).
+	 */
+	public void setMediaPacing(boolean enabled);
+
+	/**
+	 * Blocks the sender thread until the packet can be sent.
+	 * @param length The length of the packet in bytes
+	 * @param timestamp The media timestamp of the packet in ns
+	 */
+	public void pace(int length, long timestamp) throws InterruptedException;
+
+	/** Called when the stream is restarted. */
+	public void reset();
+
+	/** Returns the average time packets have been held by the pacer in ns. */
+	public long getAverageDelay();
+
+	/** Returns the longest time a packet has been held by the pacer in ns. */
+	public long getMaxDelay();
+
+}
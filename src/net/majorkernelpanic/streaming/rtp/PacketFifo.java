@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer/single-consumer FIFO of slot indices.
+ * The packetizer thread is the only producer and the sender thread of the
+ * {@link RtpSocket} is the only consumer, so two sequence counters are enough:
+ * the producer only writes the head and the consumer only writes the tail.
+ * Each counter lives on its own cache line so that both threads do not keep
+ * invalidating each other's cache.
+ * A thread waiting on the FIFO spins for a short while, then yields, and then parks.
+ */
+class PacketFifo {
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 10;
+	private static final long MAX_PARK_NS = 1000000L;
+
+	private final int mCapacity;
+
+	/** Next slot that will be published by the producer. */
+	private final Sequence mHead = new Sequence();
+
+	/** Next slot that will be released by the consumer. */
+	private final Sequence mTail = new Sequence();
+
+	/** The consumer, when it is parked waiting for a packet. */
+	private volatile Thread mParkedConsumer = null;
+
+	public PacketFifo(int capacity) {
+		mCapacity = capacity;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/** Number of slots published by the producer and not released yet by the consumer. */
+	public int size() {
+		return (int) (mHead.get() - mTail.get());
+	}
+
+	/** Must only be called when neither the producer nor the consumer is using the FIFO. */
+	public void reset() {
+		mHead.set(0);
+		mTail.set(0);
+	}
+
+	/**
+	 * Called by the producer: waits until a slot is free and returns its index.
+	 * The same index is returned until {@link #publish()} is called.
+	 */
+	public int claim() throws InterruptedException {
+		long head = mHead.get();
+		int counter = 0;
+		while (head - mTail.get() >= mCapacity) {
+			counter = backOff(counter);
+		}
+		return (int) (head % mCapacity);
+	}
+
+	/** Called by the producer: hands the slot returned by {@link #claim()} to the consumer. */
+	public void publish() {
+		mHead.set(mHead.get()+1);
+		Thread consumer = mParkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Called by the consumer: waits for a slot published by the producer.
+	 * @return The index of the slot, or -1 if nothing was published before the timeout expired
+	 */
+	public int poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long tail = mTail.get();
+		long deadline = 0;
+		int counter = 0;
+		while (mHead.get() <= tail) {
+			if (counter < SPIN_TRIES + YIELD_TRIES) {
+				if (counter == 0) deadline = System.nanoTime() + unit.toNanos(timeout);
+				counter = backOff(counter);
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return -1;
+				mParkedConsumer = Thread.currentThread();
+				// The producer may have published before it could see us
+				if (mHead.get() <= tail) LockSupport.parkNanos(this, left);
+				mParkedConsumer = null;
+				if (Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+		return (int) (tail % mCapacity);
+	}
+
+	/**
+	 * Called by the consumer: returns the index of the next published slot without waiting.
+	 * @return The index of the slot, or -1 if the FIFO is empty
+	 */
+	public int peek() {
+		long tail = mTail.get();
+		return mHead.get() > tail ? (int) (tail % mCapacity) : -1;
+	}
+
+	/** Called by the consumer: gives the slot returned by {@link #poll(long, TimeUnit)} back to the producer. */
+	public void release() {
+		mTail.set(mTail.get()+1);
+	}
+
+	private int backOff(int counter) throws InterruptedException {
+		if (counter < SPIN_TRIES) {
+			// Busy spin
+		} else if (counter < SPIN_TRIES + YIELD_TRIES) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(this, MAX_PARK_NS);
+			if (Thread.interrupted()) throw new InterruptedException();
+			return counter;
+		}
+		return counter+1;
+	}
+
+	/** Padding so that the value of a {@link Sequence} does not share a cache line with another field. */
+	static class LhsPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LhsPadding {
+		protected volatile long value;
+	}
+
+	static class RhsPadding extends Value {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+	/** A counter padded on both sides. Fields of a super class are laid out first. */
+	static final class Sequence extends RhsPadding {
+
+		public long get() {
+			return value;
+		}
+
+		public void set(long v) {
+			value = v;
+		}
+
+	}
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the {@link RtpSocket} and the {@link net.majorkernelpanic.streaming.rtcp.SenderReport}
+ * send their packets.
+ * Implementations: {@link UdpTransport}, {@link InterleavedTransport} (RTSP over TCP),
+ * {@link MemoryTransport} and {@link FileTransport}.
+ * A transport is only used by the Thread of the socket that owns it.
+ */
+public interface PacketTransport {
+
+	/**
+	 * Sends a packet.
+	 * @param packet The packet is between the position and the limit of the buffer, which is backed by an array.
+	 * 	The position of the buffer may be modified.
+	 * @param flush Whether the packet is the last one of a frame, transports that group packets should send them now
+	 */
+	public void send(ByteBuffer packet, boolean flush) throws IOException, InterruptedException;
+
+	/** Returns the number of bytes accepted by the transport but not sent yet. */
+	public int getBacklog();
+
+	/** Releases the resources of the transport. */
+	public void close();
+
+}
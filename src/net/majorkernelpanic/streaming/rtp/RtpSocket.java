@@ -20,20 +20,31 @@ package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
-import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * A basic implementation of an RTP socket.
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free ring (see {@link PacketFifo}): the packetizer thread is 
+ * its only producer and the Thread of the socket is its only consumer.
+ * Slots of the FIFO borrow their buffer from the {@link BufferPool} when a packetizer
+ * requests one, and give it back once the packet has been sent.
+ * Besides its main destination, the socket can send every packet to a set of additional 
+ * UDP destinations (see {@link #addDestination(InetAddress, int, int)}), so that a single 
+ * packetizer can feed many receivers.
+ * Packets are sent with a {@link PacketTransport}: UDP by default, interleaved in the RTSP 
+ * connection with {@link #setOutputStream(OutputStream, byte)}, or any transport set 
+ * with {@link #setTransport(PacketTransport)}. The UDP sockets are only opened when UDP is used,
+ * so that the socket also works on a plain JVM with a {@link MemoryTransport} or a {@link FileTransport}.
  */
 public class RtpSocket implements Runnable {
 
@@ -48,24 +59,32 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
-	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
+	private volatile UdpTransport mUdp;
+	private volatile PacketTransport mTransport;
+	private BufferPool mPool;
+	private ByteBuffer[] mSlots;
 	private byte[][] mBuffers;
+	private int[] mLengths;
 	private long[] mTimestamps;
+	private long[] mCommitTimes;
+	private volatile long mQueueDelay = 0;
+
+	private final CopyOnWriteArrayList<Destination> mDestinations = new CopyOnWriteArrayList<Destination>();
 
 	private SenderReport mReport;
+	private RtcpReceiver.Listener mRtcpListener = null;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private PacketFifo mFifo;
+	private volatile Thread mThread;
+	private volatile boolean mClosed = false;
+	private Pacer mPacer;
 
-	private int mTransport;
 	private long mCacheSize;
-	private long mClock = 0;
-	private long mOldTimestamp = 0;
-	private int mSsrc, mSeq = 0, mPort = -1;
+	private MediaClock mMediaClock = new MediaClock(0);
+	private int mSsrc, mSeq = 0;
+	private int mPayloadType = 96;
 	private int mBufferCount, mBufferIn, mBufferOut;
 	private int mCount = 0;
-	private byte mTcpHeader[];
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
@@ -77,70 +96,132 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
+		mBufferCount = 300;
+		mPool = BufferPool.getInstance();
+		mPool.attach();
+		mSlots = new ByteBuffer[mBufferCount];
 		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		mLengths = new int[mBufferCount];
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
-		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
+		mFifo = new PacketFifo(mBufferCount);
+		mPacer = new TokenBucketPacer();
 		
 		resetFifo();
+		
+	}
 
-		for (int i=0; i<mBufferCount; i++) {
-
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+	/** Borrows a buffer from the pool for the slot and writes the constant part of the RTP header. */
+	private void borrowBuffer(int i) throws InterruptedException {
 
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
+		mSlots[i] = mPool.acquire();
+		mBuffers[i] = mSlots[i].array();
 
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
+		/*							     Version(2)  Padding(0)					 					*/
+		/*									 ^		  ^			Extension(0)						*/
+		/*									 |		  |				^								*/
+		/*									 | --------				|								*/
+		/*									 | |---------------------								*/
+		/*									 | ||  -----------------------> Source Identifier(0)	*/
+		/*									 | ||  |												*/
+		mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
 
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		/* Payload Type */
+		mBuffers[i][1] = (byte) mPayloadType;
 
-		}
+		/* Byte 2,3        ->  Sequence Number                   */
+		/* Byte 4,5,6,7    ->  Timestamp                         */
+		/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		setLong(mBuffers[i], mSsrc, 8, 12);
 
-		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
-		}
-		
 	}
 
+	/** 
+	 * Empties the FIFO, the buffers of the slots go back to the pool, except the one 
+	 * of the slot that the packetizer may be filling. 
+	 */
 	private void resetFifo() {
+		for (int i=0;i<mBufferCount;i++) {
+			if (i != mBufferIn || mClosed) returnBuffer(i);
+		}
 		mCount = 0;
 		mBufferIn = 0;
 		mBufferOut = 0;
 		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
+		mCommitTimes = new long[mBufferCount];
+		mQueueDelay = 0;
+		mFifo.reset();
 		mReport.reset();
 		mAverageBitrate.reset();
+		mPacer.reset();
 	}
 	
-	/** Closes the underlying socket. */
+	/** Gives the buffer of a slot back to the pool. The sender thread and {@link #close()} may both try. */
+	private synchronized void returnBuffer(int i) {
+		ByteBuffer buffer = mSlots[i];
+		if (buffer != null) {
+			mSlots[i] = null;
+			mBuffers[i] = null;
+			mPool.release(buffer);
+		}
+	}
+
+	/** Closes the underlying sockets, which also ends the threads reading the RTCP packets of the receivers. */
 	public void close() {
-		mSocket.close();
+		if (mClosed) return;
+		mClosed = true;
+		UdpTransport udp = mUdp;
+		if (udp != null) udp.close();
+		mReport.close();
+		PacketTransport transport = mTransport;
+		if (transport != null && transport != udp) transport.close();
+		Thread thread = mThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// The sender thread gives back the buffers it may touch when it ends, only then can the others be returned
+		if (thread == null || !thread.isAlive()) {
+			for (int i=0;i<mBufferCount;i++) {
+				returnBuffer(i);
+			}
+		} else {
+			Log.e(TAG, "The sender thread did not end, its buffers will be returned when it ends");
+		}
+		for (Destination destination : mDestinations) {
+			destination.mReport.close();
+		}
+		mDestinations.clear();
+		mPool.detach();
+	}
+
+	/**
+	 * Packets sent over UDP to a unicast destination will be written to a connected 
+	 * {@link DatagramChannel} instead of being sent with a {@link java.net.MulticastSocket}. The route and permission checks are then done once, 
+	 * when the channel is connected, instead of once per packet. 
+	 * Use {@link BufferPool#setDirect(boolean)} so that packets are written from direct buffers.
+	 * Must be called before the destination is set and before any packet is sent.
+	 * @param enabled Whether or not the DatagramChannel should be used
+	 */
+	public void setDatagramChannelEnabled(boolean enabled) throws IOException {
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		udp().setDatagramChannelEnabled(enabled);
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
 		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+			if (mBuffers[i] != null) setLong(mBuffers[i], ssrc,8,12);
 		}
 		mReport.setSSRC(mSsrc);
+		for (Destination destination : mDestinations) {
+			if (!destination.mRewrite) destination.mReport.setSSRC(mSsrc);
+		}
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -148,34 +229,163 @@ public class RtpSocket implements Runnable {
 		return mSsrc;
 	}
 
+	/** Sets the payload type of the stream, 96 (dynamic) by default. */
+	public void setPayloadType(int payloadType) {
+		mPayloadType = payloadType & 0x7F;
+		for (int i=0;i<mBufferCount;i++) {
+			if (mBuffers[i] != null) mBuffers[i][1] = (byte) (mBuffers[i][1] & 0x80 | mPayloadType);
+		}
+	}
+
+	/** Returns the payload type of the stream. */
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
-		mClock = clock;
+		mMediaClock.setRate(clock);
+		mReport.getReceiver().setClockFrequency(clock);
+		for (Destination destination : mDestinations) {
+			destination.mReport.getReceiver().setClockFrequency(clock);
+		}
+	}
+
+	/** Returns the {@link MediaClock} of the stream, shared by the packetizer and the socket. */
+	public MediaClock getMediaClock() {
+		return mMediaClock;
 	}
 
-	/** Sets the size of the FIFO in ms. */
+	/** 
+	 * Returns the {@link RtcpReceiver} that parses the RTCP packets sent back by the
+	 * receivers of the main destination. 
+	 */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReport.getReceiver();
+	}
+
+	/** 
+	 * Sets the listener of the RTCP packets sent back by the main destination and by the 
+	 * additional destinations of the socket. 
+	 */
+	public void setRtcpListener(RtcpReceiver.Listener listener) {
+		mRtcpListener = listener;
+		mReport.getReceiver().setListener(listener);
+		for (Destination destination : mDestinations) {
+			destination.mReport.getReceiver().setListener(listener);
+		}
+	}
+
+	/** 
+	 * Sets the size of the FIFO in ms. 
+	 * If the stream is cached, packets are sent according to their timestamps.
+	 */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
+		mPacer.setMediaPacing(cacheSize>0);
+	}
+
+	/** 
+	 * Sets the {@link Pacer} that decides when packets in the FIFO are sent.
+	 * A {@link TokenBucketPacer} is used by default. 
+	 */
+	public void setPacer(Pacer pacer) {
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		pacer.setMediaPacing(mCacheSize>0);
+		mPacer = pacer;
+	}
+
+	/** Returns the {@link Pacer} used by the socket. */
+	public Pacer getPacer() {
+		return mPacer;
 	}
 	
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+		udp().setTimeToLive(ttl);
+	}
+
+	/** The UDP socket is only opened when it is needed. */
+	private synchronized UdpTransport udp() {
+		if (mUdp == null) mUdp = new UdpTransport();
+		return mUdp;
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
-			mTransport = TRANSPORT_UDP;
-			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
+			mTransport = udp();
+			mUdp.setDestination(dest, dport);
 			mReport.setDestination(dest, rtcpPort);
 		}
 	}
-	
+
+	/**
+	 * Sets the transport with which the packets are sent, for instance a {@link MemoryTransport}
+	 * or a {@link FileTransport}. The RTCP sender reports are sent with the same transport.
+	 * Additional destinations are still reached over UDP. Must not be called while streaming.
+	 */
+	public void setTransport(PacketTransport transport) {
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mTransport = transport;
+		mReport.setTransport(transport);
+	}
+
+	/** Returns the transport with which the packets are sent. */
+	public PacketTransport getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Adds a UDP destination to which every packet will also be sent, from the same buffer.
+	 * Can be called while streaming. The destination receives the stream with the SSRC 
+	 * and the sequence numbers of the socket, and its own RTCP sender reports.
+	 * @param dest The address of the receiver
+	 * @param rtpPort The port to which RTP packets will be sent
+	 * @param rtcpPort The port to which RTCP packets will be sent
+	 * @return The destination, to be passed to {@link #removeDestination(Destination)}
+	 */
+	public Destination addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		Destination destination = new Destination(dest, rtpPort, rtcpPort, mSsrc, false);
+		initDestination(destination);
+		return destination;
+	}
+
+	/**
+	 * Same as {@link #addDestination(InetAddress, int, int)}, but the SSRC of the packets sent
+	 * to this destination is rewritten, and they are numbered by their own sequence, starting
+	 * with the next packet sent. Useful when a receiver joins a stream that already started.
+	 * @param ssrc The SSRC of the stream for this destination
+	 */
+	public Destination addDestination(InetAddress dest, int rtpPort, int rtcpPort, int ssrc) {
+		Destination destination = new Destination(dest, rtpPort, rtcpPort, ssrc, true);
+		initDestination(destination);
+		return destination;
+	}
+
+	private void initDestination(Destination destination) {
+		// Packets are sent to the additional destinations from the UDP socket
+		udp();
+		RtcpReceiver receiver = destination.mReport.getReceiver();
+		receiver.setClockFrequency(mMediaClock.getRate());
+		receiver.setListener(mRtcpListener);
+		mDestinations.add(destination);
+	}
+
+	/** Stops sending packets to a destination added with {@link #addDestination(InetAddress, int, int)}. */
+	public boolean removeDestination(Destination destination) {
+		if (mDestinations.remove(destination)) {
+			destination.mReport.close();
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns the additional destinations of the socket. */
+	public List<Destination> getDestinations() {
+		return mDestinations;
+	}
+
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
@@ -183,20 +393,19 @@ public class RtpSocket implements Runnable {
 	 */ 
 	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
-			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
+			mTransport = new InterleavedTransport(outputStream, channelIdentifier);
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
 		}
 	}
 
 	public int getPort() {
-		return mPort;
+		return udp().getPort();
 	}
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			udp().getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -208,33 +417,34 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
+		mBufferIn = mFifo.claim();
+		if (mBuffers[mBufferIn] == null) borrowBuffer(mBufferIn);
 		mBuffers[mBufferIn][1] &= 0x7F;
 		return mBuffers[mBufferIn];
 	}
 
-	/** Puts the buffer back into the FIFO without sending the packet. */
+	/** 
+	 * Puts the buffer back into the FIFO without sending the packet. 
+	 * The next call to {@link #requestBuffer()} will return the same buffer.
+	 */
 	public void commitBuffer() throws IOException {
 
 		if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
 		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		mLengths[mBufferIn] = length;
+		mCommitTimes[mBufferIn] = System.nanoTime();
 
 		mAverageBitrate.push(length);
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
 		if (mThread == null) {
 			mThread = new Thread(this);
@@ -243,6 +453,25 @@ public class RtpSocket implements Runnable {
 		
 	}
 
+	/** Returns the number of packets dropped because the port of the UDP destination was unreachable. */
+	public int getUnreachableCount() {
+		UdpTransport udp = mUdp;
+		return udp != null ? udp.getUnreachableCount() : 0;
+	}
+
+	/** Returns the number of packets waiting in the FIFO. */
+	public int getFifoLength() {
+		return mFifo.size();
+	}
+
+	/** 
+	 * Returns a moving average of the time packets spend between {@link #commitBuffer(int)} 
+	 * and the moment they are handed to the network, in us. 
+	 */
+	public long getQueueDelay() {
+		return mQueueDelay;
+	}
+
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
 	public long getBitrate() {
 		return mAverageBitrate.average();
@@ -259,7 +488,7 @@ public class RtpSocket implements Runnable {
 	 **/
 	public void updateTimestamp(long timestamp) {
 		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		setLong(mBuffers[mBufferIn], mMediaClock.toRtp(timestamp), 4, 8);
 	}
 
 	/** Sets the marker in the RTP packet. */
@@ -267,45 +496,31 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/** The Thread sends the packets in the FIFO one by one, the {@link Pacer} decides when. */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
+			// Every packet already in the FIFO is sent before waiting again
+			while ((mBufferOut = mFifo.peek()) >= 0 || (mBufferOut = mFifo.poll(4,TimeUnit.SECONDS)) >= 0) {
+				mPacer.pace(mLengths[mBufferOut], mTimestamps[mBufferOut]);
+				mReport.update(mLengths[mBufferOut], mMediaClock.toRtp(mTimestamps[mBufferOut]));
 				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
-					}
+					ByteBuffer packet = mSlots[mBufferOut];
+					packet.clear();
+					packet.limit(mLengths[mBufferOut]);
+					// The transport is flushed after the last packet of a frame, nothing is sent until there is a destination
+					PacketTransport transport = mTransport;
+					if (transport != null) transport.send(packet, (mBuffers[mBufferOut][1]&0x80) != 0);
+					if (!mDestinations.isEmpty()) sendFanOut();
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				mQueueDelay = (7*mQueueDelay + (System.nanoTime()-mCommitTimes[mBufferOut])/1000)/8;
+				returnBuffer(mBufferOut);
+				mFifo.release();
 			}
+		} catch (InterruptedException ignore) {
+			// The socket was closed
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -313,19 +528,47 @@ public class RtpSocket implements Runnable {
 		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
+	/** 
+	 * Sends the packet to every additional destination. The SSRC and the sequence number
+	 * are only rewritten for the destinations that need it, and restored afterwards.
+	 */
+	private void sendFanOut() {
+		byte[] buffer = mBuffers[mBufferOut];
+		int len = mLengths[mBufferOut];
+		long rtpts = mMediaClock.toRtp(mTimestamps[mBufferOut]);
+		int seq = (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+		boolean rewritten = false;
+		ByteBuffer packet = mSlots[mBufferOut];
+		for (Destination destination : mDestinations) {
+			if (destination.mRewrite) {
+				setLong(buffer, destination.mSsrc, 8, 12);
+				setLong(buffer, ++destination.mSeq, 2, 4);
+				rewritten = true;
+			} else if (rewritten) {
+				setLong(buffer, mSsrc, 8, 12);
+				setLong(buffer, seq, 2, 4);
+				rewritten = false;
+			}
+			packet.clear();
+			packet.limit(len);
 			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+				mUdp.sendTo(packet, destination.mAddress, destination.mRtpPort);
+				destination.mReport.update(len, rtpts);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not send packet to "+destination+": "+e.getMessage());
+			}
 		}
 	}
 
+	/** 
+	 * Returns the number of bytes accepted by the transport but not sent yet, 
+	 * for instance waiting to be written to the RTSP connection when TCP is used. 
+	 */
+	public int getTransportBacklog() {
+		PacketTransport transport = mTransport;
+		return transport != null ? transport.getBacklog() : 0;
+	}
+
 	private void setLong(byte[] buffer, long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
 			buffer[end] = (byte) (n % 256);
@@ -333,6 +576,63 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
+	/** 
+	 * An additional destination of the socket. 
+	 * See {@link RtpSocket#addDestination(InetAddress, int, int)}. 
+	 */
+	public static class Destination {
+
+		private final InetAddress mAddress;
+		private final int mRtpPort, mRtcpPort, mSsrc;
+		private final boolean mRewrite;
+		private final SenderReport mReport;
+		private int mSeq = 0;
+
+		private Destination(InetAddress dest, int rtpPort, int rtcpPort, int ssrc, boolean rewrite) {
+			mAddress = dest;
+			mRtpPort = rtpPort;
+			mRtcpPort = rtcpPort;
+			mSsrc = ssrc;
+			mRewrite = rewrite;
+			mReport = new SenderReport();
+			mReport.setSSRC(ssrc);
+			mReport.setDestination(dest, rtcpPort);
+		}
+
+		public InetAddress getAddress() {
+			return mAddress;
+		}
+
+		public int getRtpPort() {
+			return mRtpPort;
+		}
+
+		public int getRtcpPort() {
+			return mRtcpPort;
+		}
+
+		/** Returns the SSRC of the stream received by the destination. */
+		public int getSSRC() {
+			return mRewrite ? mSsrc : mReport.getSSRC();
+		}
+
+		/** Returns the {@link RtcpReceiver} that parses the RTCP packets sent back by the destination. */
+		public RtcpReceiver getRtcpReceiver() {
+			return mReport.getReceiver();
+		}
+
+		/** Returns the local port from which RTCP packets are sent to the destination. */
+		public int getLocalRtcpPort() {
+			return mReport.getLocalPort();
+		}
+
+		@Override
+		public String toString() {
+			return mAddress.getHostAddress()+":"+mRtpPort;
+		}
+
+	}
+
 	/** 
 	 * Computes an average bit rate. 
 	 **/
@@ -358,7 +658,7 @@ public class RtpSocket implements Runnable {
 		public void reset() {
 			mSum = new long[mSize];
 			mElapsed = new long[mSize];
-			mNow = SystemClock.elapsedRealtime();
+			mNow = System.nanoTime()/1000000;
 			mOldNow = mNow;
 			mCount = 0;
 			mDelta = 0;
@@ -367,7 +667,7 @@ public class RtpSocket implements Runnable {
 		}
 		
 		public void push(int length) {
-			mNow = SystemClock.elapsedRealtime();
+			mNow = System.nanoTime()/1000000;
 			if (mCount>0) {
 				mDelta += mNow - mOldNow;
 				mTotal += length;
@@ -395,54 +695,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket {@link Pacer}.
+ * 
+ * The bucket is refilled at the target bit rate of the stream multiplied by a pacing factor, 
+ * so that a large key frame following a run of small frames is spread over a few 
+ * milliseconds instead of being sent in one burst, without building up a backlog.
+ * Up to {@link #setBurstSize(int)} bytes can be sent back to back.
+ * 
+ * When media pacing is enabled, packets are also held until their media timestamp is due,
+ * relatively to the first packet sent. This replaces the old sleep based smoothing of the {@link RtpSocket}.
+ * 
+ * Waiting is done with {@link LockSupport#parkNanos(long)}, which is not limited to 
+ * a resolution of one millisecond like {@link Thread#sleep(long)}.
+ */
+public class TokenBucketPacer implements Pacer {
+
+	public final static String TAG = "TokenBucketPacer";
+
+	/** Default size of the bucket in bytes. */
+	public final static int DEFAULT_BURST_SIZE = 8*RtpSocket.MTU;
+
+	/** By default packets are sent 2.5 times faster than the target bit rate of the stream. */
+	public final static float DEFAULT_PACING_FACTOR = 2.5f;
+
+	/** If a packet is this late or this early relatively to its media timestamp, the media clock is reset. */
+	private final static long MAX_MEDIA_DRIFT = 1000000000L;
+
+	// Set by other threads (the BitrateController...) while the socket sends packets
+	private volatile long mTargetBitrate = 0;
+	private volatile int mBurstSize = DEFAULT_BURST_SIZE;
+	private volatile float mPacingFactor = DEFAULT_PACING_FACTOR;
+	private volatile boolean mMediaPacing = false;
+	private volatile boolean mAnchored = false;
+
+	// Time at which the bucket will be full again, in ns
+	private long mNextFree = 0;
+	private boolean mFilling = false;
+
+	// Media clock: wall clock time and media timestamp of the reference packet, in ns
+	private long mAnchorTime = 0, mAnchorTimestamp = 0;
+
+	// Read by other threads
+	private volatile long mCount = 0, mTotalDelay = 0, mMaxDelay = 0;
+
+	public TokenBucketPacer() {}
+
+	/**
+	 * @param bitrate Target bit rate of the stream in bit per second
+	 * @param burstSize Size of the bucket in bytes
+	 */
+	public TokenBucketPacer(long bitrate, int burstSize) {
+		mTargetBitrate = bitrate;
+		mBurstSize = burstSize;
+	}
+
+	@Override
+	public void setTargetBitrate(long bitrate) {
+		mTargetBitrate = bitrate;
+	}
+
+	@Override
+	public void setMediaPacing(boolean enabled) {
+		mMediaPacing = enabled;
+		mAnchored = false;
+	}
+
+	/** Sets the number of bytes that can be sent back to back. */
+	public void setBurstSize(int burstSize) {
+		mBurstSize = burstSize;
+	}
+
+	/** Packets will be sent that many times faster than the target bit rate. */
+	public void setPacingFactor(float factor) {
+		mPacingFactor = factor;
+	}
+
+	@Override
+	public void pace(int length, long timestamp) throws InterruptedException {
+		long now = System.nanoTime(), release = now;
+		long rate = (long) (mTargetBitrate*mPacingFactor);
+		int burstSize = mBurstSize;
+
+		if (mMediaPacing) {
+			long due = mAnchorTime + (timestamp - mAnchorTimestamp);
+			if (!mAnchored || due - now > MAX_MEDIA_DRIFT || now - due > MAX_MEDIA_DRIFT) {
+				mAnchorTime = now;
+				mAnchorTimestamp = timestamp;
+				mAnchored = true;
+				due = now;
+			}
+			if (due - release > 0) release = due;
+		}
+
+		if (rate > 0) {
+			// The bucket is full, it can not hold more than mBurstSize bytes
+			if (!mFilling || mNextFree - release < 0) {
+				mNextFree = release;
+				mFilling = true;
+			}
+			// Not enough tokens in the bucket for this packet, we wait
+			long free = mNextFree - burstSize*8000000000L/rate;
+			if (free - release > 0) release = free;
+			mNextFree += length*8000000000L/rate;
+		}
+
+		long delay = release - now;
+		while (release - now > 0) {
+			LockSupport.parkNanos(this, release - now);
+			if (Thread.interrupted()) throw new InterruptedException();
+			now = System.nanoTime();
+		}
+
+		mCount++;
+		mTotalDelay += delay;
+		if (delay > mMaxDelay) mMaxDelay = delay;
+	}
+
+	@Override
+	public void reset() {
+		mFilling = false;
+		mAnchored = false;
+		mCount = mTotalDelay = mMaxDelay = 0;
+	}
+
+	@Override
+	public long getAverageDelay() {
+		long count = mCount;
+		return count > 0 ? mTotalDelay/count : 0;
+	}
+
+	@Override
+	public long getMaxDelay() {
+		return mMaxDelay;
+	}
+
+}
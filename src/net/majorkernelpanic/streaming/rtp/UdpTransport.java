@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends packets over UDP with a {@link MulticastSocket}, or with a connected
+ * {@link DatagramChannel} when it is enabled and the destination is unicast.
+ * Packets are dropped until a destination is set.
+ */
+public class UdpTransport implements PacketTransport {
+
+	public final static String TAG = "UdpTransport";
+
+	/** Bounds of the send buffer of the {@link DatagramChannel}, in bytes. */
+	private static final int MIN_SEND_BUFFER = 64*1024, MAX_SEND_BUFFER = 1024*1024;
+
+	private final MulticastSocket mSocket;
+	private final DatagramPacket mPacket = new DatagramPacket(new byte[1], 1);
+	private final DatagramPacket mPacketTo = new DatagramPacket(new byte[1], 1);
+	private DatagramChannel mChannel = null;
+	private boolean mChannelConnected = false;
+	private InetAddress mAddress = null;
+	private int mPort = -1;
+
+	private int mSendBufferSize = 0, mCount = 0;
+	private long mBytes = 0, mSince = 0;
+	private volatile int mUnreachable = 0;
+
+	public UdpTransport() {
+		try {
+			mSocket = new MulticastSocket();
+		} catch (IOException e) {
+			// Very unlikely to happen. Means that all UDP ports are already being used
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/** Returns the socket the packets are sent from, receivers send their RTCP packets back to it. */
+	public MulticastSocket getSocket() {
+		return mSocket;
+	}
+
+	/**
+	 * Packets sent to a unicast destination will be written to a connected
+	 * {@link DatagramChannel} instead of being sent with a {@link MulticastSocket}. The route and permission checks are then done once,
+	 * when the channel is connected, instead of once per packet.
+	 * Must be called before the destination is set.
+	 */
+	public void setDatagramChannelEnabled(boolean enabled) throws IOException {
+		if (enabled && mChannel == null) {
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(null);
+			if (mAddress != null) connectChannel();
+		} else if (!enabled && mChannel != null) {
+			mChannel.close();
+			mChannel = null;
+			mChannelConnected = false;
+		}
+	}
+
+	/** Sets the Time To Live of the UDP packets. */
+	public void setTimeToLive(int ttl) throws IOException {
+		mSocket.setTimeToLive(ttl);
+	}
+
+	public void setDestination(InetAddress dest, int dport) {
+		mAddress = dest;
+		mPort = dport;
+		mPacket.setAddress(dest);
+		mPacket.setPort(dport);
+		if (mChannel != null) connectChannel();
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	/** Returns the local port from which the packets are sent. */
+	public int getLocalPort() {
+		return mChannel != null ? mChannel.socket().getLocalPort() : mSocket.getLocalPort();
+	}
+
+	@Override
+	public void send(ByteBuffer packet, boolean flush) throws IOException {
+		if (mChannelConnected) {
+			mBytes += packet.remaining();
+			try {
+				mChannel.write(packet);
+			} catch (PortUnreachableException e) {
+				// An ICMP error sent back for an earlier packet, the receiver may not be listening yet: 
+				// the packet is dropped and the channel stays connected
+				if (mUnreachable++ == 0) Log.e(TAG, "Port unreachable, packets are dropped until the receiver listens");
+				return;
+			}
+			if ((++mCount&0x3F) == 0) updateSendBufferSize();
+		} else if (mPort >= 0) {
+			mPacket.setData(packet.array(), packet.arrayOffset()+packet.position(), packet.remaining());
+			mSocket.send(mPacket);
+		}
+	}
+
+	/** 
+	 * Returns the number of packets dropped because the connected {@link DatagramChannel} 
+	 * reported that the port of the destination was unreachable.
+	 */
+	public int getUnreachableCount() {
+		return mUnreachable;
+	}
+
+	/** Sends a packet to another destination, from the same socket. */
+	public void sendTo(ByteBuffer packet, InetAddress dest, int dport) throws IOException {
+		mPacketTo.setData(packet.array(), packet.arrayOffset()+packet.position(), packet.remaining());
+		mPacketTo.setAddress(dest);
+		mPacketTo.setPort(dport);
+		mSocket.send(mPacketTo);
+	}
+
+	@Override
+	public int getBacklog() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		mSocket.close();
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	private void connectChannel() {
+		mChannelConnected = false;
+		// The TTL of multicast packets can only be set with the MulticastSocket
+		if (mAddress == null || mAddress.isMulticastAddress()) return;
+		try {
+			if (mChannel.isConnected()) mChannel.disconnect();
+			mChannel.connect(new InetSocketAddress(mAddress, mPort));
+			mChannelConnected = true;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not connect the DatagramChannel, falling back on the MulticastSocket: "+e.getMessage());
+		}
+	}
+
+	/** The send buffer of the channel is sized so that it can hold about 500 ms of the stream. */
+	private void updateSendBufferSize() {
+		long now = System.nanoTime();
+		if (mSince == 0) {
+			mSince = now;
+			mBytes = 0;
+			return;
+		}
+		if (now-mSince < 1000000000L) return;
+		int size = (int) (mBytes*500000000L/(now-mSince));
+		mSince = now;
+		mBytes = 0;
+		if (size < MIN_SEND_BUFFER) size = MIN_SEND_BUFFER;
+		if (size > MAX_SEND_BUFFER) size = MAX_SEND_BUFFER;
+		if (Math.abs(size-mSendBufferSize) > mSendBufferSize/4) {
+			try {
+				mChannel.socket().setSendBufferSize(size);
+				mSendBufferSize = size;
+			} catch (IOException e) {
+				Log.e(TAG, "Could not resize the send buffer: "+e.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ *   RFC 7741.
+ *
+ *   VP8 streaming over RTP.
+ *
+ *   Must be fed with an {@link EncodedFrameSource}, whose frames are VP8 frames (a MediaCodecInputStream).
+ *
+ *   Each packet starts with a 6 bytes payload descriptor carrying the partition index (PID) and
+ *   the start of partition bit (S), a 15 bits PictureID, the TL0PICIDX and the TID.
+ *   The stream has a single temporal layer, every frame is in the base layer.
+ *   Frames that do not fit in a packet are fragmented, and the first partition
+ *   (the frame header and the modes) is not sent in the same packet as the DCT partitions,
+ *   so that a packet loss in the DCT data does not hide the modes of the frame.
+ *   Frames are dropped until the first key frame.
+ *
+ */
+public class VP8Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "VP8Packetizer";
+
+	/** Length of the payload descriptor. */
+	private final static int DESCRIPTOR_LENGTH = 6;
+
+	private Thread t = null;
+	private int mPictureId = 0, mTl0PicIdx = 0;
+	private boolean mKeyFrameSeen = false;
+	private long mKeyFrameCount = 0, mFrameCount = 0;
+
+	public VP8Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException e) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Returns the number of key frames sent since the packetizer was started. */
+	public long getKeyFrameCount() {
+		return mKeyFrameCount;
+	}
+
+	/** Returns the number of frames sent since the packetizer was started. */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	public void run() {
+		Log.d(TAG,"VP8 packetizer started !");
+		socket.setCacheSize(0);
+		mKeyFrameSeen = false;
+		mKeyFrameCount = 0;
+		mFrameCount = 0;
+		// The PictureID starts at a random value
+		mPictureId = (int) (ts & 0x7FFF);
+
+		try {
+			while (!Thread.interrupted()) {
+				EncodedFrameSource.Frame frame = ((EncodedFrameSource)is).readFrame();
+				try {
+					if (!frame.isCodecConfig()) {
+						ts = frame.presentationTimeUs*1000L;
+						send(frame.data);
+					}
+				} finally {
+					frame.release();
+				}
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"VP8 packetizer stopped !");
+
+	}
+
+	/**
+	 * Sends a VP8 frame.
+	 * The first 3 bytes of the frame are the frame tag: the inverse key frame flag (1 bit), the version (3 bits),
+	 * the show frame flag (1 bit) and the size of the first partition (19 bits), see section 9.1 of RFC 6386.
+	 * The first partition also contains the 7 bytes that follow the tag in a key frame.
+	 */
+	private void send(ByteBuffer frame) throws IOException, InterruptedException {
+		int length = frame.remaining();
+		if (length < 3) return;
+		int p = frame.position();
+		int tag = (frame.get(p)&0xFF) | (frame.get(p+1)&0xFF)<<8 | (frame.get(p+2)&0xFF)<<16;
+		boolean keyFrame = (tag&0x01) == 0;
+
+		if (keyFrame) {
+			mKeyFrameSeen = true;
+			mKeyFrameCount++;
+		} else if (!mKeyFrameSeen) {
+			// The frame can not be decoded without the previous ones
+			return;
+		}
+		mFrameCount++;
+
+		int firstPartition = Math.min(length, (keyFrame ? 10 : 3) + (tag>>5));
+		int maxPayload = MAXPACKETSIZE-rtphl-DESCRIPTOR_LENGTH;
+
+		if (length <= maxPayload) {
+			sendPacket(frame, length, 0, true, true);
+		} else {
+			// The first partition, then the DCT partitions, each of them in as few packets as possible
+			sendPartition(frame, firstPartition, 0, length == firstPartition);
+			if (length > firstPartition) sendPartition(frame, length-firstPartition, 1, true);
+		}
+
+		mPictureId = (mPictureId+1) & 0x7FFF;
+		// Every frame is in the base layer
+		mTl0PicIdx = (mTl0PicIdx+1) & 0xFF;
+	}
+
+	private void sendPartition(ByteBuffer frame, int length, int pid, boolean last) throws IOException, InterruptedException {
+		int maxPayload = MAXPACKETSIZE-rtphl-DESCRIPTOR_LENGTH;
+		// The partition is split in packets of about the same size
+		int count = (length+maxPayload-1)/maxPayload;
+		int size = (length+count-1)/count;
+		boolean start = true;
+		while (length > 0) {
+			int len = Math.min(size, length);
+			length -= len;
+			sendPacket(frame, len, pid, start, last && length == 0);
+			start = false;
+		}
+	}
+
+	/** Sends the next len bytes of the frame preceeded by the payload descriptor. */
+	private void sendPacket(ByteBuffer frame, int len, int pid, boolean start, boolean marker) throws IOException, InterruptedException {
+		buffer = socket.requestBuffer();
+		// X bit, S bit and PID
+		buffer[rtphl] = (byte) (0x80 | (start ? 0x10 : 0) | pid);
+		// I, L and T bits
+		buffer[rtphl+1] = (byte) 0xE0;
+		// PictureID on 15 bits, M bit set
+		buffer[rtphl+2] = (byte) (0x80 | mPictureId>>8);
+		buffer[rtphl+3] = (byte) (mPictureId&0xFF);
+		buffer[rtphl+4] = (byte) mTl0PicIdx;
+		// TID 0 and Y bit
+		buffer[rtphl+5] = 0x20;
+		frame.get(buffer, rtphl+DESCRIPTOR_LENGTH, len);
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		send(rtphl+DESCRIPTOR_LENGTH+len);
+	}
+
+}
@@ -18,41 +18,73 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 
+/**
+ * Reads a RTSP connection in which RTP and RTCP packets are interleaved with the RTSP messages.
+ * Interleaved packets ('$', channel, length, payload) are removed from the stream and
+ * RTCP packets are passed to the {@link RtcpReceiver} registered for their channel, 
+ * everything else can be read from this stream.
+ * A packet can only start at the beginning of a line, so that a '$' in a RTSP message is not 
+ * mistaken for one.
+ */
 class RtcpDeinterleaver extends InputStream implements Runnable {
 	
 	public final static String TAG = "RtcpDeinterleaver";
 	
 	private IOException mIOException;
-	private InputStream mInputStream;
+	private DataInputStream mInputStream;
 	private PipedInputStream mPipedInputStream;
 	private PipedOutputStream mPipedOutputStream;
+	private RtcpReceiver[] mReceivers = new RtcpReceiver[256];
 	private byte[] mBuffer;
 	
 	public RtcpDeinterleaver(InputStream inputStream) {
-		mInputStream = inputStream;
+		mInputStream = new DataInputStream(new BufferedInputStream(inputStream));
 		mPipedInputStream = new PipedInputStream(4096);
 		try {
 			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
 		} catch (IOException e) {}
-		mBuffer = new byte[1024];
+		mBuffer = new byte[65536];
 		new Thread(this).start();
 	}
 
+	/** RTCP packets received on that channel will be parsed by the receiver. */
+	public void setReceiver(int channel, RtcpReceiver receiver) {
+		mReceivers[channel&0xFF] = receiver;
+	}
+
 	@Override
 	public void run() {
 		try {
+			int len = 0;
 			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+				int b = mInputStream.read();
+				if (b < 0) throw new IOException("Connection lost");
+				if (len == 0 && b == '$') {
+					int channel = mInputStream.readUnsignedByte();
+					int length = mInputStream.readUnsignedShort();
+					mInputStream.readFully(mBuffer, 0, length);
+					RtcpReceiver receiver = mReceivers[channel];
+					if (receiver != null) receiver.parse(mBuffer, 0, length);
+				} else {
+					// RTSP messages are passed on line by line
+					mBuffer[len++] = (byte) b;
+					if (b == '\n' || len == mBuffer.length) {
+						mPipedOutputStream.write(mBuffer, 0, len);
+						len = 0;
+					}
+				}
 			}
 		} catch (IOException e) {
 			try {
-				mPipedInputStream.close();
+				mPipedOutputStream.close();
 			} catch (IOException ignore) {}
 			mIOException = e;
 		}
@@ -33,8 +33,10 @@ import java.util.Locale;
 import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -115,6 +117,7 @@ public class RtspClient {
 	private String mSessionID;
 	private String mAuthorization;
 	private BufferedReader mBufferedReader;
+	private RtcpDeinterleaver mDeinterleaver;
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private Handler mMainHandler;
@@ -296,6 +299,7 @@ public class RtspClient {
 		try {
 			mSocket.close();
 		} catch (Exception ignore) {}
+		if (mOutputStream != null) InterleavedWriter.release(mOutputStream);
 		mHandler.removeCallbacks(mConnectionMonitor);
 		mHandler.removeCallbacks(mRetryConnection);
 		mState = STATE_STOPPED;
@@ -303,8 +307,17 @@ public class RtspClient {
 	
 	private void tryConnection() throws IOException {
 		mCSeq = 0;
+		// The writer of the previous connection, if any, is not needed anymore
+		if (mOutputStream != null) InterleavedWriter.release(mOutputStream);
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		if (mParameters.transport == TRANSPORT_TCP) {
+			// The server may send RTCP packets on the connection
+			mDeinterleaver = new RtcpDeinterleaver(mSocket.getInputStream());
+			mBufferedReader = new BufferedReader(new InputStreamReader(mDeinterleaver));
+		} else {
+			mDeinterleaver = null;
+			mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		}
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
 		sendRequestAnnounce();
 		sendRequestSetup();
@@ -429,6 +442,9 @@ public class RtspClient {
 					}
 				} else {
 					stream.setOutputStream(mOutputStream, (byte)(2*i));
+					if (stream instanceof MediaStream) {
+						mDeinterleaver.setReceiver(2*i+1, ((MediaStream) stream).getPacketizer().getRtpSocket().getRtcpReceiver());
+					}
 				}
 			}
 		}
@@ -35,6 +35,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -429,6 +430,7 @@ public class RtspServer extends Service {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
 			mSession.release();
+			InterleavedWriter.release(mOutput);
 
 			try {
 				mClient.close();
@@ -561,6 +563,9 @@ public class RtspServer extends Service {
 
                     response.attributes = requestAttributes;
 
+                    // The new viewer can only start decoding the stream on a key frame
+                    mSession.requestKeyFrame();
+
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
 
@@ -21,9 +21,14 @@ package net.majorkernelpanic.streaming.rtsp;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AAC;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AMRNB;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_NONE;
+import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_OPUS;
+import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_PCMA;
+import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_PCMU;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H263;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H264;
+import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H265;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_NONE;
+import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_VP8;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -53,7 +58,9 @@ public class UriParser {
 	 * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
-	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=500-30-1280-720</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac=64-48000-eld</li></ul>
 	 * @param uri The URI
 	 * @throws IllegalStateException
 	 * @throws IOException
@@ -174,6 +181,18 @@ public class UriParser {
 					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
 				}
 
+				// H.265
+				else if (paramName.equalsIgnoreCase("h265") || paramName.equalsIgnoreCase("hevc")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+				}
+
+				// VP8
+				else if (paramName.equalsIgnoreCase("vp8")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_VP8);
+				}
+
 				// H.263
 				else if (paramName.equalsIgnoreCase("h263")) {
 					VideoQuality quality = VideoQuality.parseQuality(paramValue);
@@ -191,6 +210,25 @@ public class UriParser {
 					AudioQuality quality = AudioQuality.parseQuality(paramValue);
 					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_AAC);
 				}
+				else if (paramName.equalsIgnoreCase("aacld") || paramName.equalsIgnoreCase("aaceld")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					quality.profile = paramName.equalsIgnoreCase("aacld") ? AudioQuality.AAC_LD : AudioQuality.AAC_ELD;
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_AAC);
+				}
+
+				// Opus
+				else if (paramName.equalsIgnoreCase("opus")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_OPUS);
+				}
+
+				// G.711
+				else if (paramName.equalsIgnoreCase("pcmu") || paramName.equalsIgnoreCase("ulaw")) {
+					builder.setAudioEncoder(AUDIO_PCMU);
+				}
+				else if (paramName.equalsIgnoreCase("pcma") || paramName.equalsIgnoreCase("alaw")) {
+					builder.setAudioEncoder(AUDIO_PCMA);
+				}
 
 			}
 
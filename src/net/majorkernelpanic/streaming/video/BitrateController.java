@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Adapts the bitrate of the encoder of a {@link VideoStream} to the network while streaming.
+ * Every {@link #setInterval(long) interval}, three congestion signals are checked:
+ * the number of packets waiting in the FIFO of the {@link RtpSocket}, the growth of the
+ * time packets spend in it compared to the lowest value seen recently, and the fraction of
+ * packets lost reported by the receivers in their RTCP reports.
+ * The bitrate is decreased multiplicatively when one of them indicates congestion, and
+ * increased additively when the network looks fine (AIMD).
+ * Only the MediaCodec API allows to change the bitrate of the encoder (Android 4.4 is needed).
+ */
+public class BitrateController implements Runnable {
+
+	public final static String TAG = "BitrateController";
+
+	/** The bitrate was increased because the network looks fine. */
+	public final static int REASON_PROBE = 0;
+
+	/** The bitrate was decreased because too many packets are waiting to be sent. */
+	public final static int REASON_QUEUE = 1;
+
+	/** The bitrate was decreased because packets spend more and more time before being sent. */
+	public final static int REASON_DELAY = 2;
+
+	/** The bitrate was decreased because receivers lose packets. */
+	public final static int REASON_LOSS = 3;
+
+	/** Informs on the decisions of the controller. */
+	public interface Listener {
+
+		/**
+		 * Called from the thread of the controller when the bitrate of the encoder changes.
+		 * @param bitrate The new bitrate in bit/s
+		 * @param reason {@link #REASON_PROBE}, {@link #REASON_QUEUE}, {@link #REASON_DELAY} or {@link #REASON_LOSS}
+		 */
+		public void onBitrateAdapted(int bitrate, int reason);
+
+	}
+
+	private final static int DELAY_WINDOW = 20;
+
+	private int mFloor = 0, mCeiling = 0;
+	private int mIncreaseStep = 50000;
+	private float mDecreaseFactor = 0.8f;
+	private int mMaxQueueLength = 50;
+	private long mMaxDelayGrowth = 100;
+	private float mMaxLoss = 0.1f, mMinLoss = 0.02f;
+	private long mInterval = 500;
+	private boolean mEnabled = true;
+
+	private Listener mListener = null;
+	private MediaCodec mMediaCodec = null;
+	private RtpSocket mSocket = null;
+	private Thread mThread = null;
+	private int mBitrate, mLow, mHigh;
+	private long mLastReport, mHoldUntil;
+	private long[] mDelays = new long[DELAY_WINDOW];
+	private int mDelayIndex;
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** The controller is enabled by default. Takes effect the next time the stream is started. */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Sets the range in which the bitrate is adapted, in bit/s.
+	 * By default, the ceiling is the bitrate of the {@link VideoQuality} of the stream and the floor a quarter of it.
+	 * @param floor The lowest bitrate, or 0 for the default value
+	 * @param ceiling The highest bitrate, or 0 for the default value
+	 */
+	public void setBitrateRange(int floor, int ceiling) {
+		mFloor = floor;
+		mCeiling = ceiling;
+	}
+
+	/**
+	 * Sets the parameters of the AIMD algorithm.
+	 * @param increaseStep The bitrate is increased by that many bit/s every second when there is no congestion (default 50000)
+	 * @param decreaseFactor The bitrate is multiplied by this factor on congestion (default 0.8)
+	 */
+	public void setAimdParameters(int increaseStep, float decreaseFactor) {
+		mIncreaseStep = increaseStep;
+		mDecreaseFactor = decreaseFactor;
+	}
+
+	/**
+	 * Sets the thresholds above which the network is considered congested.
+	 * @param queueLength Number of packets waiting in the FIFO of the socket (default 50)
+	 * @param delayGrowth Growth of the time packets spend in the FIFO in ms (default 100)
+	 * @param loss Fraction of packets lost reported by a receiver (default 0.1), the bitrate
+	 * 	is only increased when receivers lose less than a fifth of it.
+	 */
+	public void setCongestionThresholds(int queueLength, long delayGrowth, float loss) {
+		mMaxQueueLength = queueLength;
+		mMaxDelayGrowth = delayGrowth;
+		mMaxLoss = loss;
+		mMinLoss = loss/5;
+	}
+
+	/** Sets how often in ms the congestion signals are checked (default 500). */
+	public void setInterval(long interval) {
+		mInterval = interval;
+	}
+
+	/** Returns the bitrate of the encoder, in bit/s. */
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	/**
+	 * Starts adapting the bitrate of the encoder.
+	 * @param codec The encoder
+	 * @param socket The socket that sends the stream
+	 * @param bitrate The bitrate the encoder was configured with
+	 */
+	public synchronized void start(MediaCodec codec, RtpSocket socket, int bitrate) {
+		mBitrate = bitrate;
+		if (!mEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+		mHigh = mCeiling > 0 ? mCeiling : bitrate;
+		mLow = mFloor > 0 ? mFloor : Math.min(bitrate/4, mHigh);
+		mMediaCodec = codec;
+		mSocket = socket;
+		mLastReport = mHoldUntil = 0;
+		mDelayIndex = 0;
+		mThread = new Thread(this);
+		mThread.start();
+	}
+
+	/** Stops adapting the bitrate, must be called before the encoder is released. */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+			mThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException ignore) {}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(mInterval);
+				update();
+			}
+		} catch (InterruptedException ignore) {}
+	}
+
+	private void update() {
+		long now = System.currentTimeMillis();
+		int reason = -1;
+
+		// Growth of the queuing delay compared to the lowest delay of the last DELAY_WINDOW intervals
+		long delay = mSocket.getQueueDelay()/1000, minDelay = delay;
+		mDelays[mDelayIndex++%DELAY_WINDOW] = delay;
+		for (int i=0;i<Math.min(mDelayIndex, DELAY_WINDOW);i++) {
+			if (mDelays[i] < minDelay) minDelay = mDelays[i];
+		}
+
+		float loss = 0;
+		long lastReport = mLastReport;
+		for (RtcpReceiver.ReceptionReport report : mSocket.getRtcpReceiver().getReports()) {
+			if (report.receivedAt > lastReport) {
+				if (report.fractionLost > loss) loss = report.fractionLost;
+				if (report.receivedAt > mLastReport) mLastReport = report.receivedAt;
+			}
+		}
+		for (RtpSocket.Destination destination : mSocket.getDestinations()) {
+			for (RtcpReceiver.ReceptionReport report : destination.getRtcpReceiver().getReports()) {
+				if (report.receivedAt > lastReport) {
+					if (report.fractionLost > loss) loss = report.fractionLost;
+					if (report.receivedAt > mLastReport) mLastReport = report.receivedAt;
+				}
+			}
+		}
+
+		if (mSocket.getFifoLength()+mSocket.getTransportBacklog()/RtpSocket.MTU > mMaxQueueLength) {
+			reason = REASON_QUEUE;
+		} else if (delay-minDelay > mMaxDelayGrowth) {
+			reason = REASON_DELAY;
+		} else if (loss > mMaxLoss) {
+			reason = REASON_LOSS;
+		}
+
+		int bitrate = mBitrate;
+		if (reason >= 0) {
+			bitrate = Math.max(mLow, (int) (bitrate*mDecreaseFactor));
+			// Leaves some time to the network to drain before probing again
+			mHoldUntil = now + 4*mInterval;
+		} else if (loss < mMinLoss && now >= mHoldUntil) {
+			bitrate = (int) Math.min(mHigh, bitrate + mIncreaseStep*mInterval/1000);
+			reason = REASON_PROBE;
+		}
+
+		if (bitrate != mBitrate) {
+			setEncoderBitrate(bitrate);
+			Log.d(TAG, "Bitrate: "+bitrate/1000+" kbps, reason: "+reason+", delay: "+delay+" ms, loss: "+loss);
+			Listener listener = mListener;
+			if (listener != null) listener.onBitrateAdapted(bitrate, reason);
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void setEncoderBitrate(int bitrate) {
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			mMediaCodec.setParameters(params);
+			mSocket.getPacer().setTargetBitrate(bitrate);
+			mBitrate = bitrate;
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Could not change the bitrate of the encoder: "+e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.hw.CodecManager;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences.Editor;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * H.265 can only be encoded with the MediaCodec API, the camera feeds the encoder through a surface.
+ */
+public class H265Stream extends VideoStream {
+
+	public final static String TAG = "H265Stream";
+
+	private final static String MIME_TYPE = "video/hevc";
+
+	private String mB64VPS, mB64SPS, mB64PPS;
+
+	/**
+	 * Constructs the H.265 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public H265Stream() {
+		this(CameraInfo.CAMERA_FACING_BACK);
+	}
+
+	/**
+	 * Constructs the H.265 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(int cameraId) {
+		super(cameraId);
+		mMimeType = MIME_TYPE;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer();
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mB64SPS == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+		"a=rtpmap:96 H265/90000\r\n" +
+		"a=fmtp:96 sprop-vps="+mB64VPS+";sprop-sps="+mB64SPS+";sprop-pps="+mB64PPS+"\r\n";
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			byte[] vps = Base64.decode(mB64VPS, Base64.NO_WRAP);
+			byte[] sps = Base64.decode(mB64SPS, Base64.NO_WRAP);
+			byte[] pps = Base64.decode(mB64PPS, Base64.NO_WRAP);
+			((H265Packetizer)mPacketizer).setStreamParameters(vps, sps, pps);
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		if (Build.VERSION.SDK_INT < 21) throw new ConfNotSupportedException("H.265 needs Android 5.0 or later !");
+		mMode = MODE_MEDIACODEC_API_2;
+		mQuality = mRequestedQuality.clone();
+		testMediaCodecAPI();
+	}
+
+	/**
+	 * Picks an H.265 encoder and determines the VPS, SPS and PPS it produces at the requested resolution.
+	 * The encoder is fed with a few blank frames until it outputs its parameter sets.
+	 * The result is saved in the shared preferences. Should not be called by the UI thread.
+	 */
+	@SuppressLint({ "NewApi", "InlinedApi" })
+	private void testMediaCodecAPI() throws IOException {
+		String key = PREF_PREFIX+"h265-mc-"+mQuality.resX+","+mQuality.resY;
+
+		if (mSettings != null && mSettings.contains(key)) {
+			String[] s = mSettings.getString(key, "").split(",");
+			mEncoderName = s[0];
+			mB64VPS = s[1];
+			mB64SPS = s[2];
+			mB64PPS = s[3];
+			return;
+		}
+
+		// Looks for an encoder that accepts a YUV 420 color format
+		mEncoderName = null;
+		for (int j = MediaCodecList.getCodecCount() - 1; j >= 0 && mEncoderName == null; j--) {
+			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
+			if (!codecInfo.isEncoder() || !Arrays.asList(codecInfo.getSupportedTypes()).contains(MIME_TYPE)) continue;
+			int[] formats = codecInfo.getCapabilitiesForType(MIME_TYPE).colorFormats;
+			for (int k = 0; k < formats.length && mEncoderName == null; k++) {
+				for (int l = 0; l < CodecManager.SUPPORTED_COLOR_FORMATS.length; l++) {
+					if (formats[k] == CodecManager.SUPPORTED_COLOR_FORMATS[l]) {
+						mEncoderName = codecInfo.getName();
+						mEncoderColorFormat = formats[k];
+						break;
+					}
+				}
+			}
+		}
+		if (mEncoderName == null) throw new ConfNotSupportedException("No H.265 encoder found on the phone !");
+
+		Log.i(TAG,"Testing H265 support with "+mEncoderName+"...");
+
+		byte[][] parameterSets = new byte[3][];
+		MediaCodec encoder = MediaCodec.createByCodecName(mEncoderName);
+		try {
+			MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mQuality.resX, mQuality.resY);
+			mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+			mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
+			mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoderColorFormat);
+			mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
+			encoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			encoder.start();
+
+			byte[] frame = new byte[mQuality.resX*mQuality.resY*3/2];
+			Arrays.fill(frame, (byte) 0x80);
+			ByteBuffer[] inputBuffers = encoder.getInputBuffers();
+			ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			long now = System.nanoTime()/1000, elapsed = 0;
+
+			while (elapsed < 3000000 && (parameterSets[0] == null || parameterSets[1] == null || parameterSets[2] == null)) {
+
+				// Some encoders won't give us the parameter sets unless they receive something to encode first...
+				int index = encoder.dequeueInputBuffer(50000);
+				if (index >= 0) {
+					ByteBuffer input = inputBuffers[index];
+					input.clear();
+					input.put(frame, 0, Math.min(frame.length, input.remaining()));
+					encoder.queueInputBuffer(index, 0, input.position(), elapsed, 0);
+				}
+
+				index = encoder.dequeueOutputBuffer(info, 50000);
+				if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					// The parameter sets should be in csd-0, one after the other with start codes
+					ByteBuffer csd = encoder.getOutputFormat().getByteBuffer("csd-0");
+					if (csd != null) parseParameterSets(csd, parameterSets);
+				} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outputBuffers = encoder.getOutputBuffers();
+				} else if (index >= 0) {
+					ByteBuffer output = outputBuffers[index];
+					output.position(info.offset);
+					output.limit(info.offset+info.size);
+					parseParameterSets(output, parameterSets);
+					encoder.releaseOutputBuffer(index, false);
+				}
+
+				elapsed = System.nanoTime()/1000 - now;
+			}
+		} catch (RuntimeException e) {
+			throw new ConfNotSupportedException(e.getMessage());
+		} finally {
+			try {
+				encoder.stop();
+			} catch (Exception ignore) {}
+			encoder.release();
+		}
+
+		if (parameterSets[0] == null || parameterSets[1] == null || parameterSets[2] == null) {
+			throw new ConfNotSupportedException("Could not determine the VPS, SPS & PPS.");
+		}
+
+		mB64VPS = Base64.encodeToString(parameterSets[0], Base64.NO_WRAP);
+		mB64SPS = Base64.encodeToString(parameterSets[1], Base64.NO_WRAP);
+		mB64PPS = Base64.encodeToString(parameterSets[2], Base64.NO_WRAP);
+
+		Log.i(TAG,"H265 Test succeded...");
+
+		// Save test result
+		if (mSettings != null) {
+			Editor editor = mSettings.edit();
+			editor.putString(key, mEncoderName+","+mB64VPS+","+mB64SPS+","+mB64PPS);
+			editor.commit();
+		}
+	}
+
+	/** Looks for the VPS (type 32), the SPS (type 33) and the PPS (type 34) in a buffer in Annex B format. */
+	private static void parseParameterSets(ByteBuffer buffer, byte[][] parameterSets) {
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		int start = -1;
+		for (int i=0;i<=data.length;i++) {
+			boolean startCode = i+3 <= data.length && data[i] == 0 && data[i+1] == 0 && data[i+2] == 1;
+			if (!startCode && i < data.length) continue;
+			if (start >= 0) {
+				int stop = i;
+				while (stop > start && data[stop-1] == 0) stop--;
+				int type = stop > start ? (data[start]>>1)&0x3F : -1;
+				if (type >= 32 && type <= 34) parameterSets[type-32] = Arrays.copyOfRange(data, start, stop);
+			}
+			start = i+3;
+			i += 2;
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.rtp.VP8Packetizer;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.os.Build;
+import android.service.textservice.SpellCheckerService.Session;
+
+/**
+ * A class for streaming VP8 from the camera of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * VP8 can only be encoded with the MediaCodec API, the camera feeds the encoder through a surface.
+ */
+public class VP8Stream extends VideoStream {
+
+	public final static String TAG = "VP8Stream";
+
+	/**
+	 * Constructs the VP8 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public VP8Stream() {
+		this(CameraInfo.CAMERA_FACING_BACK);
+	}
+
+	/**
+	 * Constructs the VP8 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public VP8Stream(int cameraId) {
+		super(cameraId);
+		mMimeType = "video/x-vnd.on2.vp8";
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new VP8Packetizer();
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		if (Build.VERSION.SDK_INT < 19) throw new ConfNotSupportedException("VP8 needs Android 4.4 or later !");
+		mMode = MODE_MEDIACODEC_API_2;
+		mQuality = mRequestedQuality.clone();
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() {
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 VP8/90000\r\n";
+	}
+
+}
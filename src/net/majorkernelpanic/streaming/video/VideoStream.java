@@ -20,7 +20,6 @@ package net.majorkernelpanic.streaming.video;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -32,6 +31,8 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.ByteSource;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
@@ -43,8 +44,11 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -57,6 +61,8 @@ public abstract class VideoStream extends MediaStream {
 
 	protected final static String TAG = "VideoStream";
 
+	private final static byte[] MDAT = new byte[] {'m','d','a','t'};
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone(); 
 	protected SurfaceHolder.Callback mSurfaceHolderCallback = null;
@@ -80,6 +86,30 @@ public abstract class VideoStream extends MediaStream {
 	protected int mEncoderColorFormat;
 	protected int mCameraImageFormat;
 	protected int mMaxFps = 0;	
+	protected BitrateController mBitrateController = new BitrateController();
+	protected int mKeyFrameInterval = 1;
+	protected long mKeyFrameRequestInterval = 500;
+	private long mLastKeyFrameRequest = 0;
+
+	/** Receivers that lost a part of a picture ask for a new key frame. */
+	private RtcpReceiver.Listener mRtcpListener = new RtcpReceiver.Listener() {
+		@Override
+		public void onPictureLoss(int senderSsrc, int mediaSsrc) {
+			requestKeyFrame();
+		}
+		@Override
+		public void onFullIntraRequest(int senderSsrc, int mediaSsrc) {
+			requestKeyFrame();
+		}
+		@Override
+		public void onReceptionReport(RtcpReceiver.ReceptionReport report) {}
+		@Override
+		public void onNack(int senderSsrc, int mediaSsrc, int[] sequenceNumbers) {}
+		@Override
+		public void onRemb(int senderSsrc, long bitrate, int[] mediaSsrcs) {}
+		@Override
+		public void onBye(int ssrc) {}
+	};
 
 	/** 
 	 * Don't use this class directly.
@@ -250,6 +280,57 @@ public abstract class VideoStream extends MediaStream {
 		return mRequestedQuality;
 	}
 
+	/** Returns the {@link BitrateController} that adapts the bitrate of the encoder while streaming. */
+	public BitrateController getBitrateController() {
+		return mBitrateController;
+	}
+
+	/**
+	 * Sets the interval in seconds between two key frames produced by the encoder when streaming 
+	 * with the MediaCodec API. Receivers can ask for a key frame when they need one, so it can 
+	 * be a few seconds long. Changes will take effect next time you start the stream.
+	 * @param interval The interval in seconds, 1 by default
+	 */
+	public void setKeyFrameInterval(int interval) {
+		mKeyFrameInterval = interval;
+	}
+
+	public int getKeyFrameInterval() {
+		return mKeyFrameInterval;
+	}
+
+	/**
+	 * Sets the minimum time in ms between two key frames requested with {@link #requestKeyFrame()}.
+	 * Requests made sooner are ignored. 500 ms by default.
+	 */
+	public void setKeyFrameRequestInterval(long interval) {
+		mKeyFrameRequestInterval = interval;
+	}
+
+	/**
+	 * Asks the encoder to produce a key frame as soon as possible. 
+	 * Only works with the MediaCodec API, Android 4.4 is needed.
+	 * Called automatically when a receiver sends a PLI or a FIR RTCP packet.
+	 * @return true if the request was passed to the encoder
+	 */
+	@SuppressLint("NewApi")
+	public synchronized boolean requestKeyFrame() {
+		if (!mStreaming || mMediaCodec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+		long now = SystemClock.elapsedRealtime();
+		if (now - mLastKeyFrameRequest < mKeyFrameRequestInterval) return false;
+		mLastKeyFrameRequest = now;
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			mMediaCodec.setParameters(params);
+			Log.d(TAG, "Key frame requested");
+			return true;
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Could not request a key frame: "+e.getMessage());
+			return false;
+		}
+	}
+
 	/**
 	 * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called 
 	 * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -274,6 +355,8 @@ public abstract class VideoStream extends MediaStream {
 	 */
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!mPreviewStarted) mCameraOpenedManually = false;
+		mPacketizer.getRtpSocket().getPacer().setTargetBitrate(mQuality.bitrate);
+		mPacketizer.getRtpSocket().setRtcpListener(mRtcpListener);
 		super.start();
 		Log.d(TAG,"Stream configuration: FPS: "+mQuality.framerate+" Width: "+mQuality.resX+" Height: "+mQuality.resY);
 	}
@@ -287,6 +370,7 @@ public abstract class VideoStream extends MediaStream {
 			if (mMode == MODE_MEDIACODEC_API_2) {
 				((SurfaceView)mSurfaceView).removeMediaCodecSurface();
 			}
+			mBitrateController.stop();
 			super.stop();
 			// We need to restart the preview
 			if (!mCameraOpenedManually) {
@@ -369,23 +453,19 @@ public abstract class VideoStream extends MediaStream {
 			throw new ConfNotSupportedException(e.getMessage());
 		}
 
-		InputStream is = null;
+		ByteSource is = null;
 
 		if (sPipeApi == PIPE_API_PFD) {
-			is = new ParcelFileDescriptor.AutoCloseInputStream(mParcelRead);
+			is = new ByteSource(new ParcelFileDescriptor.AutoCloseInputStream(mParcelRead));
 		} else  {
-			is = mReceiver.getInputStream();
+			is = new ByteSource(mReceiver.getInputStream());
 		}
 
 		// This will skip the MPEG4 header if this step fails we can't stream anything :(
 		try {
-			byte buffer[] = new byte[4];
 			// Skip all atoms preceding mdat atom
-			while (!Thread.interrupted()) {
-				while (is.read() != 'm');
-				is.read(buffer,0,3);
-				if (buffer[0] == 'd' && buffer[1] == 'a' && buffer[2] == 't') break;
-			}
+			is.skipTo(MDAT);
+			is.skipBytes(MDAT.length);
 		} catch (IOException e) {
 			Log.e(TAG,"Couldn't skip mp4 header :/");
 			stop();
@@ -448,9 +528,10 @@ public abstract class VideoStream extends MediaStream {
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,debugger.getEncoderColorFormat());
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mMediaCodec.start();
+		mBitrateController.start(mMediaCodec, mPacketizer.getRtpSocket(), mQuality.bitrate);
 
 		Camera.PreviewCallback callback = new Camera.PreviewCallback() {
 			long now = System.nanoTime()/1000, oldnow = now, i=0;
@@ -506,18 +587,26 @@ public abstract class VideoStream extends MediaStream {
 		// Estimates the frame rate of the camera
 		measureFramerate();
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-		mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+		if ("video/avc".equals(mMimeType)) {
+			EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+			mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
+		} else if (mEncoderName != null) {
+			// The encoder picked by the stream when it was configured
+			mMediaCodec = MediaCodec.createByCodecName(mEncoderName);
+		} else {
+			// No color format has to be chosen with a surface, the first encoder of the type will do
+			mMediaCodec = MediaCodec.createEncoderByType(mMimeType);
+		}
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		Surface surface = mMediaCodec.createInputSurface();
 		((SurfaceView)mSurfaceView).addMediaCodecSurface(surface);
 		mMediaCodec.start();
+		mBitrateController.start(mMediaCodec, mPacketizer.getRtpSocket(), mQuality.bitrate);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
 		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
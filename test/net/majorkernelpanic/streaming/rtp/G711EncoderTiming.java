@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.Random;
+
+/**
+ * Times the encoding loops of {@link G711Packetizer} on 20 ms frames of 8 kHz audio, 
+ * the size the packetizer encodes at once.
+ * Runs on a plain JVM: java net.majorkernelpanic.streaming.rtp.G711EncoderTiming [seconds of audio]
+ */
+public class G711EncoderTiming {
+
+	private final static int SAMPLES = 160;
+
+	public static void main(String[] args) {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+		int frames = seconds*8000/SAMPLES;
+
+		byte[] pcm = new byte[2*SAMPLES], dst = new byte[SAMPLES];
+		new Random(0).nextBytes(pcm);
+
+		// Warm up, so that the loops are compiled before they are timed
+		for (int i=0;i<20000;i++) {
+			G711Packetizer.encodeULaw(pcm, 0, dst, 0, SAMPLES);
+			G711Packetizer.encodeALaw(pcm, 0, dst, 0, SAMPLES);
+		}
+
+		long ulaw = time(true, pcm, dst, frames), alaw = time(false, pcm, dst, frames);
+		report("mu-law", ulaw, frames, seconds);
+		report("A-law", alaw, frames, seconds);
+
+		// Uses the output, the loops can not be optimized away
+		int sum = 0;
+		for (int i=0;i<SAMPLES;i++) sum += dst[i];
+		System.out.println("Checksum: "+sum);
+	}
+
+	private static long time(boolean ulaw, byte[] pcm, byte[] dst, int frames) {
+		long start = System.nanoTime();
+		for (int i=0;i<frames;i++) {
+			if (ulaw) G711Packetizer.encodeULaw(pcm, 0, dst, 0, SAMPLES);
+			else G711Packetizer.encodeALaw(pcm, 0, dst, 0, SAMPLES);
+		}
+		return System.nanoTime()-start;
+	}
+
+	private static void report(String law, long duration, int frames, int seconds) {
+		System.out.println(law+": "+seconds+" s of audio in "+duration/1000000+" ms, "
+				+(duration/frames)+" ns per frame, "+String.format("%.2f", (double)duration/frames/SAMPLES)+" ns per sample");
+	}
+
+}
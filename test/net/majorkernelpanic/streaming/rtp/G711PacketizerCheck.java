@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Compares the tables and the index math of {@link G711Packetizer#encodeULaw} and 
+ * {@link G711Packetizer#encodeALaw} with linear2ulaw() and linear2alaw() of the reference 
+ * implementation of Sun Microsystems (g711.c), for every 16 bits sample.
+ * Runs on a plain JVM: java net.majorkernelpanic.streaming.rtp.G711PacketizerCheck
+ */
+public class G711PacketizerCheck {
+
+	private final static short[] SEG_UEND = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+	private final static short[] SEG_AEND = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+	public static void main(String[] args) {
+		// Every sample, from an odd offset and to a non zero offset so that the index math is checked too
+		final int count = 1<<16, offset = 1, dstOffset = 3;
+		byte[] pcm = new byte[offset+2*count];
+		for (int i=0;i<count;i++) {
+			short sample = (short) (i-32768);
+			pcm[offset+2*i] = (byte) sample;
+			pcm[offset+2*i+1] = (byte) (sample>>8);
+		}
+		byte[] ulaw = new byte[dstOffset+count], alaw = new byte[dstOffset+count];
+		G711Packetizer.encodeULaw(pcm, offset, ulaw, dstOffset, count);
+		G711Packetizer.encodeALaw(pcm, offset, alaw, dstOffset, count);
+
+		int errors = 0;
+		for (int i=0;i<count;i++) {
+			short sample = (short) (i-32768);
+			int u = linear2ulaw(sample), a = linear2alaw(sample);
+			if ((ulaw[dstOffset+i]&0xFF) != u) {
+				if (errors++ < 10) System.err.println("mu-law, sample "+sample+": "+hex(ulaw[dstOffset+i]&0xFF)+" instead of "+hex(u));
+			}
+			if ((alaw[dstOffset+i]&0xFF) != a) {
+				if (errors++ < 10) System.err.println("A-law, sample "+sample+": "+hex(alaw[dstOffset+i]&0xFF)+" instead of "+hex(a));
+			}
+		}
+		if (errors > 0) throw new AssertionError(errors+" samples are not encoded like the reference");
+		System.out.println("G.711: the "+count+" samples are encoded like the reference");
+	}
+
+	/** linear2ulaw() of g711.c, the input is a 16 bits sample. */
+	private static int linear2ulaw(short pcm_val) {
+		short mask, seg;
+		pcm_val = (short) (pcm_val >> 2);
+		if (pcm_val < 0) {
+			pcm_val = (short) -pcm_val;
+			mask = 0x7F;
+		} else {
+			mask = 0xFF;
+		}
+		if (pcm_val > 8159) pcm_val = 8159;
+		pcm_val += (0x84 >> 2);
+		seg = search(pcm_val, SEG_UEND);
+		if (seg >= 8) return (0x7F ^ mask) & 0xFF;
+		int uval = (seg << 4) | ((pcm_val >> (seg + 1)) & 0xF);
+		return (uval ^ mask) & 0xFF;
+	}
+
+	/** linear2alaw() of g711.c, the input is a 16 bits sample. */
+	private static int linear2alaw(short pcm_val) {
+		short mask, seg;
+		pcm_val = (short) (pcm_val >> 3);
+		if (pcm_val >= 0) {
+			mask = 0xD5;
+		} else {
+			mask = 0x55;
+			pcm_val = (short) (-pcm_val - 1);
+		}
+		seg = search(pcm_val, SEG_AEND);
+		if (seg >= 8) return (0x7F ^ mask) & 0xFF;
+		int aval = seg << 4;
+		if (seg < 2) aval |= (pcm_val >> 1) & 0xF;
+		else aval |= (pcm_val >> seg) & 0xF;
+		return (aval ^ mask) & 0xFF;
+	}
+
+	private static short search(short val, short[] table) {
+		for (short i=0;i<table.length;i++) {
+			if (val <= table[i]) return i;
+		}
+		return (short) table.length;
+	}
+
+	private static String hex(int value) {
+		return "0x"+Integer.toHexString(value);
+	}
+
+}
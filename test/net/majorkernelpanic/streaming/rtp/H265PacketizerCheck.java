@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.majorkernelpanic.streaming.rtp.RtpCapture.Packet;
+import static net.majorkernelpanic.streaming.rtp.RtpCapture.check;
+
+/**
+ * Sends a recorded Annex B stream through the {@link H265Packetizer} and checks the RTP packets 
+ * against RFC 7798: the PayloadHdr and the S and E bits of the FU packets, the LayerId and TID of 
+ * the AP packets, the marker bit, the VPS, SPS and PPS sent before each IRAP picture, and the 
+ * boundaries of the access units.
+ * The stream is read twice in a row, so that the beginning of the second copy, with its parameter 
+ * sets, comes after the packets that the {@link RtpSocket} does not send.
+ * Runs on a plain JVM: java net.majorkernelpanic.streaming.rtp.H265PacketizerCheck [test/res/sample.265]
+ */
+public class H265PacketizerCheck {
+
+	private final static int FRAME_RATE = 30;
+
+	private final static int NAL_VPS = 32, NAL_SPS = 33, NAL_PPS = 34, NAL_AUD = 35, NAL_PREFIX_SEI = 39;
+	private final static int NAL_AP = 48, NAL_FU = 49;
+
+	/** A NAL unit, and the access unit it belongs to. */
+	private static class Nal {
+		final byte[] data;
+		final int accessUnit;
+
+		Nal(byte[] data, int accessUnit) {
+			this.data = data;
+			this.accessUnit = accessUnit;
+		}
+
+		int type() {
+			return (data[0]>>1)&0x3F;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args.length > 0 ? args[0] : "test/res/sample.265");
+		byte[] stream = readFile(file);
+		byte[] twice = Arrays.copyOf(stream, 2*stream.length);
+		System.arraycopy(stream, 0, twice, stream.length, stream.length);
+
+		List<Nal> expected = expectedNalUnits(twice);
+
+		H265Packetizer packetizer = new H265Packetizer();
+		packetizer.setFrameRate(FRAME_RATE);
+		List<Packet> packets = RtpCapture.capture(packetizer, new ByteSource(new ByteArrayInputStream(twice)));
+		check(packets.size() > 0, "No packet was sent");
+
+		// Depacketizes, from the first packet that begins a NAL unit
+		List<byte[]> nals = new ArrayList<byte[]>();
+		List<Integer> first = new ArrayList<Integer>(), last = new ArrayList<Integer>();
+		int fuStart = -1;
+		byte[] fu = null;
+		for (int i=0;i<packets.size();i++) {
+			Packet packet = packets.get(i);
+			int type = (packet.payload(0)>>1)&0x3F;
+			check((packet.payload(0)&0x80) == 0, "Packet "+i+": the F bit is set");
+			if (type == NAL_FU) {
+				boolean start = (packet.payload(2)&0x80) != 0, end = (packet.payload(2)&0x40) != 0;
+				check(!(start && end), "Packet "+i+": an FU with both the S and E bits");
+				if (start) {
+					check(fu == null, "Packet "+i+": an FU starts before the end of the previous one");
+					// The NAL unit header is rebuilt from the PayloadHdr and the type of the FU header
+					fu = new byte[] {(byte) (packet.payload(0)&0x81 | (packet.payload(2)&0x3F)<<1), (byte) packet.payload(1)};
+					fuStart = i;
+				} else if (fu == null) {
+					// The beginning of the NAL unit was not sent
+					continue;
+				}
+				check(!packet.marker || end, "Packet "+i+": the marker bit is set on an FU without the E bit");
+				fu = concat(fu, Arrays.copyOfRange(packet.data, RtpSocket.RTP_HEADER_LENGTH+3, packet.data.length));
+				if (end) {
+					add(nals, first, last, fu, fuStart, i);
+					fu = null;
+				}
+			} else {
+				check(fu == null, "Packet "+i+": the FU that starts at packet "+fuStart+" has no E bit");
+				if (type == NAL_AP) {
+					int offset = 2, count = 0, layerId = 63, tid = 7;
+					while (offset < packet.payloadLength()) {
+						int length = packet.payload(offset)<<8 | packet.payload(offset+1);
+						check(length > 0 && offset+2+length <= packet.payloadLength(), "Packet "+i+": malformed AP");
+						int start = RtpSocket.RTP_HEADER_LENGTH+offset+2;
+						byte[] nal = Arrays.copyOfRange(packet.data, start, start+length);
+						layerId = Math.min(layerId, layerId(nal[0], nal[1]));
+						tid = Math.min(tid, (nal[1]&0x07)-1);
+						add(nals, first, last, nal, i, i);
+						offset += 2+length;
+						count++;
+					}
+					check(count >= 2, "Packet "+i+": an AP with a single NAL unit");
+					check(layerId((byte) packet.payload(0), (byte) packet.payload(1)) == layerId, "Packet "+i+": the LayerId of the AP is not the lowest of its NAL units");
+					check((packet.payload(1)&0x07)-1 == tid, "Packet "+i+": the TID of the AP is not the lowest of its NAL units");
+				} else {
+					add(nals, first, last, Arrays.copyOfRange(packet.data, RtpSocket.RTP_HEADER_LENGTH, packet.data.length), i, i);
+				}
+			}
+		}
+
+		// The NAL units that were sent are the last ones of the stream, in the same order
+		int offset = expected.size()-nals.size();
+		check(offset >= 0, nals.size()+" NAL units were sent, the stream has "+expected.size());
+		for (int i=0;i<nals.size();i++) {
+			check(Arrays.equals(nals.get(i), expected.get(offset+i).data), "NAL unit "+(offset+i)+" of the stream was not sent as it is");
+		}
+
+		// All the packets of an access unit have its timestamp, the marker bit is set on its last packet
+		for (int i=1;i<nals.size();i++) {
+			Nal previous = expected.get(offset+i-1), nal = expected.get(offset+i);
+			long t0 = packets.get(last.get(i-1)).timestamp, t1 = packets.get(first.get(i)).timestamp;
+			// Unless both NAL units are in the same AP
+			boolean marker = packets.get(last.get(i-1)).marker, shared = last.get(i-1).equals(first.get(i));
+			if (previous.accessUnit == nal.accessUnit) {
+				check(t0 == t1, "NAL units "+(offset+i-1)+" and "+(offset+i)+" are in the same access unit but have different timestamps");
+				check(shared || !marker, "The marker bit is set on NAL unit "+(offset+i-1)+", which does not end its access unit");
+			} else {
+				check(!shared, "NAL units "+(offset+i-1)+" and "+(offset+i)+" are in the same AP but not in the same access unit");
+				check(Math.abs((t1-t0 & 0xFFFFFFFFL)-90000/FRAME_RATE) <= 1, "Access unit "+nal.accessUnit+" does not come one frame after the previous one");
+				check(marker, "The marker bit is not set on NAL unit "+(offset+i-1)+", which ends access unit "+previous.accessUnit);
+			}
+		}
+		check(packets.get(packets.size()-1).marker, "The marker bit is not set on the last packet");
+
+		int irap = 0;
+		for (int i=3;i<nals.size();i++) {
+			int type = expected.get(offset+i).type();
+			if (type >= 16 && type <= 21 && expected.get(offset+i-1).type() != type) {
+				check(expected.get(offset+i-3).type() == NAL_VPS && expected.get(offset+i-2).type() == NAL_SPS 
+						&& expected.get(offset+i-1).type() == NAL_PPS, "IRAP picture "+i+" is not preceded by the VPS, SPS and PPS");
+				irap++;
+			}
+		}
+		check(irap > 1, "The stream is too short, only "+irap+" IRAP pictures were sent");
+
+		System.out.println("H.265: "+packets.size()+" packets, "+nals.size()+" NAL units, "+irap+" IRAP pictures checked");
+	}
+
+	/**
+	 * Splits the stream in NAL units and in access units (section 7.4.2.4.4 of the H.265 specification),
+	 * and adds the VPS, SPS and PPS before the IRAP pictures whose access unit does not contain them.
+	 */
+	private static List<Nal> expectedNalUnits(byte[] stream) {
+		List<Nal> nals = new ArrayList<Nal>();
+		byte[] vps = null, sps = null, pps = null;
+		int accessUnit = -1, start = -1;
+		boolean vcl = true, parameters = false;
+		for (int i=0;i<=stream.length;i++) {
+			boolean startCode = i+3 <= stream.length && stream[i] == 0 && stream[i+1] == 0 && stream[i+2] == 1;
+			if (!startCode && i < stream.length) continue;
+			if (start >= 0) {
+				int end = i;
+				while (end > start && stream[end-1] == 0) end--;
+				byte[] nal = Arrays.copyOfRange(stream, start, end);
+				int type = (nal[0]>>1)&0x3F;
+				boolean first = type <= 31 && (nal[2]&0x80) != 0;
+				// The first of those NAL units after a picture begins the next access unit
+				if (vcl && (first || (type >= NAL_VPS && type <= NAL_AUD) || type == NAL_PREFIX_SEI)) {
+					accessUnit++;
+					vcl = false;
+					parameters = false;
+				}
+				if (type == NAL_VPS) vps = nal;
+				if (type == NAL_SPS) sps = nal;
+				if (type == NAL_PPS) pps = nal;
+				if (type >= NAL_VPS && type <= NAL_PPS) parameters = true;
+				if (type >= 16 && type <= 21 && !parameters) {
+					nals.add(new Nal(vps, accessUnit));
+					nals.add(new Nal(sps, accessUnit));
+					nals.add(new Nal(pps, accessUnit));
+					parameters = true;
+				}
+				if (type <= 31) vcl = true;
+				nals.add(new Nal(nal, accessUnit));
+			}
+			start = i+3;
+			i += 2;
+		}
+		return nals;
+	}
+
+	private static void add(List<byte[]> nals, List<Integer> first, List<Integer> last, byte[] nal, int firstPacket, int lastPacket) {
+		nals.add(nal);
+		first.add(firstPacket);
+		last.add(lastPacket);
+	}
+
+	private static int layerId(byte h0, byte h1) {
+		return (h0&0x01)<<5 | (h1&0xF8)>>3;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = Arrays.copyOf(a, a.length+b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int len = 0;
+			while (len < data.length) {
+				int n = is.read(data, len, data.length-len);
+				if (n < 0) break;
+				len += n;
+			}
+			return Arrays.copyOf(data, len);
+		} finally {
+			is.close();
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.majorkernelpanic.streaming.rtp.RtpCapture.Packet;
+import static net.majorkernelpanic.streaming.rtp.RtpCapture.check;
+
+/**
+ * Sends an Ogg Opus file through the {@link OggOpusSource} and the {@link OpusPacketizer} with a ptime
+ * of 40 ms, and checks the RTP packets: the code 3 packets (the 0x80|count byte, the sizes of the frames 
+ * coded on one or two bytes) and the regrouping of the frames, which stops before {@link OpusPacketizer} 
+ * reaches the count of frames it reserved room for when the TOC changes, when the packet would be too 
+ * large, or at the end of the file.
+ * The packets of test/res/sample.opus are 10 ms CELT frames with a valid TOC followed by random bytes, 
+ * the packetizer does not decode them. After the packets that the {@link RtpSocket} does not send, 
+ * come frames of 252 bytes and more, a change of TOC in the middle of a packet, frames too large to
+ * be grouped by 4, a code 1 packet, and a file that ends in the middle of a packet. A page of another 
+ * logical stream must be skipped.
+ * Runs on a plain JVM: java net.majorkernelpanic.streaming.rtp.OpusPacketizerCheck [test/res/sample.opus]
+ */
+public class OpusPacketizerCheck {
+
+	private final static int PTIME = 40;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args.length > 0 ? args[0] : "test/res/sample.opus");
+		List<byte[]> expected = readOggOpus(file);
+
+		OpusPacketizer packetizer = new OpusPacketizer();
+		packetizer.setPtime(PTIME);
+		List<Packet> packets = RtpCapture.capture(packetizer, new OggOpusSource(new FileInputStream(file)));
+		check(packets.size() > 0, "No packet was sent");
+
+		// The Opus packets each RTP packet was made of
+		List<List<byte[]>> groups = new ArrayList<List<byte[]>>();
+		int twoBytes = 0;
+		for (int i=0;i<packets.size();i++) {
+			Packet packet = packets.get(i);
+			List<byte[]> group = new ArrayList<byte[]>();
+			int toc = packet.payload(0);
+			if ((toc&0x03) == 3 && (packet.payload(1)&0x80) != 0) {
+				// Code 3, VBR
+				int count = packet.payload(1)&0x3F;
+				check((packet.payload(1)&0x40) == 0, "Packet "+i+": padding");
+				check(count >= 2 && count <= OpusPacketizer.MAX_FRAMES_PER_PACKET, "Packet "+i+": "+count+" frames");
+				int[] sizes = new int[count];
+				int p = 2, sum = 0;
+				for (int j=0;j<count-1;j++) {
+					sizes[j] = packet.payload(p++);
+					if (sizes[j] >= 252) {
+						sizes[j] += 4*packet.payload(p++);
+						twoBytes++;
+					}
+					sum += sizes[j];
+				}
+				sizes[count-1] = packet.payloadLength()-p-sum;
+				check(sizes[count-1] >= 0, "Packet "+i+": the sizes of the frames exceed the packet");
+				for (int j=0;j<count;j++) {
+					// Each frame was a code 0 packet of the encoder
+					byte[] frame = new byte[1+sizes[j]];
+					frame[0] = (byte) (toc&0xFC);
+					System.arraycopy(packet.data, RtpSocket.RTP_HEADER_LENGTH+p, frame, 1, sizes[j]);
+					p += sizes[j];
+					group.add(frame);
+				}
+			} else {
+				// Sent as it is
+				group.add(Arrays.copyOfRange(packet.data, RtpSocket.RTP_HEADER_LENGTH, packet.data.length));
+			}
+			groups.add(group);
+		}
+
+		// The Opus packets that were sent are the last ones of the file, in the same order
+		int sent = 0;
+		for (List<byte[]> group : groups) sent += group.size();
+		int offset = expected.size()-sent;
+		check(offset >= 0, sent+" Opus packets were sent, the file has "+expected.size());
+
+		int byToc = 0, bySize = 0, atEnd = 0, n = offset;
+		for (int i=0;i<groups.size();i++) {
+			List<byte[]> group = groups.get(i);
+			Packet packet = packets.get(i);
+			for (int j=0;j<group.size();j++) {
+				check(Arrays.equals(group.get(j), expected.get(n+j)), "Opus packet "+(n+j)+" of the file was not sent as it is");
+			}
+
+			int duration = 0;
+			for (byte[] opus : group) duration += OpusPacketizer.getPacketDuration(ByteBuffer.wrap(opus));
+			check(!packet.marker, "Packet "+i+": the marker bit is set in the middle of a talkspurt");
+			if (i+1 < packets.size()) {
+				long delta = packets.get(i+1).timestamp-packet.timestamp & 0xFFFFFFFFL;
+				check(delta == duration, "Packet "+(i+1)+" does not come "+duration+" samples after packet "+i);
+			}
+
+			// A code 0 packet of the encoder, shorter than the ptime, is grouped with the next ones
+			byte[] first = group.get(0);
+			int frame = duration/group.size();
+			int reserved = (first[0]&0x03) != 0 ? 1 : Math.min(Math.min(PTIME*48, 5760)/frame, OpusPacketizer.MAX_FRAMES_PER_PACKET);
+			check(group.size() <= reserved, "Packet "+i+": "+group.size()+" frames, room was made for "+reserved);
+			if (group.size() < reserved) {
+				int next = n+group.size();
+				if (next == expected.size()) {
+					atEnd++;
+				} else if (expected.get(next)[0] != first[0]) {
+					byToc++;
+				} else {
+					int length = 0;
+					for (byte[] opus : group) length += opus.length-1;
+					check(AbstractPacketizer.rtphl+2+2*(reserved-1)+length+expected.get(next).length-1 > AbstractPacketizer.MAXPACKETSIZE,
+							"Packet "+i+": "+group.size()+" frames, but the next one would have fit");
+					bySize++;
+				}
+			}
+			n += group.size();
+		}
+
+		check(twoBytes > 0, "No frame size was coded on two bytes");
+		check(byToc > 0 && bySize > 0 && atEnd > 0, "The frames were not regrouped, TOC: "+byToc+", size: "+bySize+", end: "+atEnd);
+		System.out.println("Opus: "+packets.size()+" packets, "+sent+" Opus packets, "+twoBytes+" sizes on two bytes, "
+				+"packets cut short by a TOC change: "+byToc+", by their size: "+bySize+", by the end of the file: "+atEnd);
+	}
+
+	/** Reads the Opus packets of the first logical stream of the file, without the OpusHead and OpusTags packets. */
+	private static List<byte[]> readOggOpus(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream is = new FileInputStream(file);
+		try {
+			int len = 0;
+			while (len < data.length) {
+				int r = is.read(data, len, data.length-len);
+				if (r < 0) break;
+				len += r;
+			}
+		} finally {
+			is.close();
+		}
+
+		List<byte[]> packets = new ArrayList<byte[]>();
+		byte[] packet = new byte[0];
+		int p = 0, serial = -1;
+		while (p+27 <= data.length) {
+			check(data[p] == 'O' && data[p+1] == 'g' && data[p+2] == 'g' && data[p+3] == 'S', "No page at offset "+p);
+			int s = ByteBuffer.wrap(data, p+14, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			if (serial < 0) serial = s;
+			int segments = data[p+26]&0xFF, body = p+27+segments;
+			for (int i=0;i<segments;i++) {
+				int lacing = data[p+27+i]&0xFF;
+				if (s == serial) {
+					int start = packet.length;
+					packet = Arrays.copyOf(packet, start+lacing);
+					System.arraycopy(data, body, packet, start, lacing);
+					if (lacing < 255) {
+						packets.add(packet);
+						packet = new byte[0];
+					}
+				}
+				body += lacing;
+			}
+			p = body;
+		}
+		check(packets.size() > 2, "No Opus packet in the file");
+		return packets.subList(2, packets.size());
+	}
+
+}
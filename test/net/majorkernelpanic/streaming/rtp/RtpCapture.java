@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a packetizer over an input stream and collects the RTP packets it sends through 
+ * a {@link MemoryTransport}. Used by the checks of the packetizers.
+ * Note that the {@link RtpSocket} does not send the first 31 packets of a stream.
+ */
+class RtpCapture {
+
+	/** A packet is considered the last one when no other is sent during that time, in ms. */
+	private final static long IDLE_TIME = 2000;
+
+	/** An RTP packet and the fields of its header that the checks need. */
+	static class Packet {
+		final byte[] data;
+		final boolean marker;
+		final int sequence;
+		final long timestamp;
+
+		Packet(byte[] data) {
+			this.data = data;
+			marker = (data[1]&0x80) != 0;
+			sequence = (data[2]&0xFF)<<8 | data[3]&0xFF;
+			timestamp = ((long)(data[4]&0xFF)<<24 | (data[5]&0xFF)<<16 | (data[6]&0xFF)<<8 | data[7]&0xFF);
+		}
+
+		/** Returns the byte at the given offset in the payload. */
+		int payload(int offset) {
+			return data[RtpSocket.RTP_HEADER_LENGTH+offset]&0xFF;
+		}
+
+		int payloadLength() {
+			return data.length-RtpSocket.RTP_HEADER_LENGTH;
+		}
+	}
+
+	static List<Packet> capture(AbstractPacketizer packetizer, InputStream is) throws InterruptedException {
+		MemoryTransport transport = new MemoryTransport(1024);
+		packetizer.getRtpSocket().setTransport(transport);
+		packetizer.setInputStream(is);
+		packetizer.start();
+
+		List<Packet> packets = new ArrayList<Packet>();
+		byte[] buffer = new byte[RtpSocket.MTU];
+		long last = System.currentTimeMillis();
+		while (System.currentTimeMillis()-last < IDLE_TIME) {
+			int length = transport.poll(buffer);
+			if (length < 0) {
+				Thread.sleep(10);
+				continue;
+			}
+			packets.add(new Packet(Arrays.copyOf(buffer, length)));
+			last = System.currentTimeMillis();
+		}
+
+		packetizer.stop();
+		packetizer.getRtpSocket().close();
+
+		for (int i=1;i<packets.size();i++) {
+			check(packets.get(i).sequence == (packets.get(i-1).sequence+1 & 0xFFFF), "Packet "+i+" is out of sequence");
+		}
+		return packets;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+}